@@ -0,0 +1,60 @@
+package org.reactivecouchbase.client.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivecouchbase.client.InMemoryCommandCache;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Future;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int KEYS = 10000;
+
+    private InMemoryCommandCache cache;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        cache = InMemoryCommandCache.of(Duration.parse("10 min"), KEYS);
+        keys = new String[KEYS * 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key-" + i;
+        }
+        for (int i = 0; i < KEYS; i++) {
+            cache.put(keys[i], Future.successful(keys[i]));
+        }
+    }
+
+    @Benchmark
+    public Object hit() {
+        return cache.get(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return cache.get(keys[KEYS + ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public Object putIfAbsent() {
+        String key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return cache.putIfAbsent(key, Future.successful(key));
+    }
+}
@@ -0,0 +1,126 @@
+package org.reactivecouchbase.client.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivecouchbase.client.Command;
+import org.reactivecouchbase.client.CommandCollapser;
+import org.reactivecouchbase.client.CommandContext;
+import org.reactivecouchbase.client.CommandPolicy;
+import org.reactivecouchbase.client.InMemoryCommandCache;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Await;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.functional.Try;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of CommandContext.execute for each path of the pipeline, the commands do no work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    private static final Duration AWAIT = Duration.parse("10 sec");
+
+    private CommandContext context;
+    private CommandContext cachedContext;
+    private CommandContext collapsedContext;
+    private CommandContext rejectingContext;
+
+    @Setup
+    public void setup() {
+        context = CommandContext.of(Integer.MAX_VALUE);
+        cachedContext = CommandContext.of(Integer.MAX_VALUE).withCache(InMemoryCommandCache.of(Duration.parse("10 min")));
+        collapsedContext = CommandContext.of(Integer.MAX_VALUE).withCollapser(CommandCollapser.of(Duration.parse("1 millis"), 64));
+        rejectingContext = CommandContext.of(Integer.MAX_VALUE).withPolicy(CommandPolicy.defaults().withMaxConcurrentRequests(0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.shutdown();
+        cachedContext.shutdown();
+        collapsedContext.shutdown();
+        rejectingContext.shutdown();
+    }
+
+    @Benchmark
+    public String success() {
+        return Await.result(context.execute(new SuccessCommand(null)), AWAIT);
+    }
+
+    @Benchmark
+    public String cached() {
+        return Await.result(cachedContext.execute(new SuccessCommand("key-" + ThreadLocalRandom.current().nextInt(100))), AWAIT);
+    }
+
+    @Benchmark
+    public String collapsed() {
+        return Await.result(collapsedContext.execute(new SuccessCommand("key-" + ThreadLocalRandom.current().nextInt(100))), AWAIT);
+    }
+
+    @Benchmark
+    public String fallback() {
+        return Await.result(context.execute(new FailingCommand()), AWAIT);
+    }
+
+    @Benchmark
+    public Try<String> rejected() {
+        return rejectingContext.getResult(new SuccessCommand(null));
+    }
+
+    public static class SuccessCommand extends Command<String> {
+
+        private final String key;
+
+        public SuccessCommand(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            return Future.successful("Hello");
+        }
+
+        @Override
+        public String cacheKey() {
+            return key;
+        }
+    }
+
+    public static class FailingCommand extends Command<String> {
+
+        private static final RuntimeException FAILURE = new RuntimeException("Failure");
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            return Future.failed(FAILURE);
+        }
+
+        @Override
+        public String fallback() {
+            return "Fallback";
+        }
+
+        @Override
+        public CommandPolicy policy() {
+            // keep the circuit closed, the benchmark is about the fallback path
+            return CommandPolicy.defaults().withRequestVolumeThreshold(Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.reactivecouchbase.client.bench;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivecouchbase.client.Client;
+import org.reactivecouchbase.client.ConsistentHashClient;
+import org.reactivecouchbase.client.InMemoryClientRegistry;
+import org.reactivecouchbase.client.ServiceDescriptor;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.functional.Option;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry lookups and client routing, for 10 to 10000 registered instances spread over 10 services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    private static final ImmutableList<String> ROLES = ImmutableList.of("read", "write");
+
+    @Param({"10", "1000", "10000"})
+    public int instances;
+
+    private InMemoryClientRegistry registry;
+    private Client client;
+    private ConsistentHashClient hashClient;
+
+    @Setup
+    public void setup() {
+        registry = new InMemoryClientRegistry();
+        for (int i = 0; i < instances; i++) {
+            List<String> roles = i % 2 == 0 ? Arrays.asList("read") : Arrays.asList("read", "write");
+            registry.register(new ServiceDescriptor("uid-" + i, "service-" + (i % 10), "http://host-" + i, roles, Option.apply("1." + (i % 3))));
+        }
+        client = Client.client(registry, "service-0");
+        hashClient = Client.consistentHash(registry, "service-0");
+    }
+
+    @Benchmark
+    public List<ServiceDescriptor> byName() {
+        return registry.services("service-" + ThreadLocalRandom.current().nextInt(10), Option.<String>none(), ImmutableList.<String>of());
+    }
+
+    @Benchmark
+    public List<ServiceDescriptor> byVersionAndRoles() {
+        return registry.services("service-" + ThreadLocalRandom.current().nextInt(10), Option.apply("1.1"), ROLES);
+    }
+
+    @Benchmark
+    public Future<String> loadbalanced() {
+        return client.call(desc -> desc.uid);
+    }
+
+    @Benchmark
+    public Future<String> consistentHash() {
+        return hashClient.call("key-" + ThreadLocalRandom.current().nextInt(1000), desc -> desc.uid);
+    }
+}
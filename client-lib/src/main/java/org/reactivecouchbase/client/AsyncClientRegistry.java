@@ -15,6 +15,14 @@ public interface AsyncClientRegistry {
     Future<Registration> register(final ServiceDescriptor desc, ExecutorService ec);
     Future<Unit> unregister(final String uuid, ExecutorService ec);
 
+    /**
+     * Notifies the listener of every change of the registry, starting with the current snapshot.
+     * @return the subscription, none if the registry can't tell about its changes
+     */
+    default Option<Registration> subscribe(RegistryListener listener) {
+        return Option.none();
+    }
+
     default Future<Unit> unregister(final ServiceDescriptor desc, ExecutorService ec) {
         return unregister(desc.uid, ec);
     }
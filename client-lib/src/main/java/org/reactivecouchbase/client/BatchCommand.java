@@ -0,0 +1,23 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command serving a whole batch of collapsed requests at once (a multi-get for instance).
+ * The result maps each key of the batch to its value, keys missing from the result fail their own request.
+ */
+public abstract class BatchCommand<T> extends Command<Map<String, T>> {
+
+    private final ImmutableList<String> keys;
+
+    public BatchCommand(List<String> keys) {
+        this.keys = ImmutableList.copyOf(keys);
+    }
+
+    public ImmutableList<String> keys() {
+        return keys;
+    }
+}
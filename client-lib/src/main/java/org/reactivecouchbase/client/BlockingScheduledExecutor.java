@@ -0,0 +1,266 @@
+package org.reactivecouchbase.client;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ScheduledExecutorService given to Command.runAsync when the context has a blocking executor : tasks run on the
+ * blocking executor (virtual threads for instance), scheduled tasks are triggered by the platform scheduler.
+ * The lifecycle is the one of the blocking executor, the scheduler belongs to the context.
+ */
+class BlockingScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    // delays come from the trigger on the scheduler, the result from the task run on the blocking executor
+    private static class HandedOff<V> implements ScheduledFuture<V> {
+        private final ScheduledFuture<?> trigger;
+        private final FutureTask<V> task;
+
+        private HandedOff(ScheduledFuture<?> trigger, FutureTask<V> task) {
+            this.trigger = trigger;
+            this.task = task;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return trigger.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            trigger.cancel(false);
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return task.get();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return task.get(timeout, unit);
+        }
+    }
+
+    // a periodic task : runs never overlap, each one is handed off to the blocking executor by the scheduler
+    private class Periodic implements ScheduledFuture<Object> {
+        private final Runnable command;
+        private final CompletableFuture<Object> outcome = new CompletableFuture<Object>();
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> trigger;
+        private volatile Thread runner;
+
+        private Periodic(Runnable command) {
+            this.command = command;
+        }
+
+        // true if the run completed normally and the task goes on
+        private boolean runOnce() {
+            runner = Thread.currentThread();
+            try {
+                if (!outcome.isDone()) {
+                    command.run();
+                }
+                return !outcome.isDone();
+            } catch (Throwable t) {
+                // like the platform scheduler, a failed run suppresses the next ones
+                outcome.completeExceptionally(t);
+                stopTrigger();
+                return false;
+            } finally {
+                runner = null;
+                running.set(false);
+            }
+        }
+
+        // hands a run off to the blocking executor, unless the previous one is still going
+        private void handOff(Runnable run) {
+            if (outcome.isDone() || !running.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                blocking.execute(run);
+            } catch (RejectedExecutionException e) {
+                // shut down meanwhile, stop the schedule instead of failing on each tick
+                running.set(false);
+                cancel(false);
+            }
+        }
+
+        private void scheduleAtFixedRate(long initialDelay, long period, TimeUnit unit) {
+            trigger = scheduler.scheduleAtFixedRate(() -> handOff(this::runOnce), initialDelay, period, unit);
+            if (outcome.isDone()) {
+                stopTrigger();
+            }
+        }
+
+        // the next run is scheduled once the previous one is over
+        private void scheduleWithFixedDelay(long delay, long next, TimeUnit unit) {
+            trigger = scheduler.schedule(() -> handOff(() -> {
+                if (runOnce()) {
+                    try {
+                        scheduleWithFixedDelay(next, next, unit);
+                    } catch (RejectedExecutionException e) {
+                        cancel(false);
+                    }
+                }
+            }), delay, unit);
+            if (outcome.isDone()) {
+                stopTrigger();
+            }
+        }
+
+        // the first run can end before the trigger is even set
+        private void stopTrigger() {
+            ScheduledFuture<?> current = trigger;
+            if (current != null) {
+                current.cancel(false);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return trigger.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = outcome.cancel(false);
+            stopTrigger();
+            Thread current = runner;
+            if (cancelled && mayInterruptIfRunning && current != null) {
+                current.interrupt();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return outcome.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return outcome.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return outcome.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return outcome.get(timeout, unit);
+        }
+    }
+
+    private final ExecutorService blocking;
+    private final ScheduledExecutorService scheduler;
+
+    BlockingScheduledExecutor(ExecutorService blocking, ScheduledExecutorService scheduler) {
+        this.blocking = blocking;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        blocking.execute(command);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return scheduler.schedule(() -> blocking.execute(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        final FutureTask<V> task = new FutureTask<V>(callable);
+        ScheduledFuture<?> trigger = scheduler.schedule(() -> {
+            try {
+                blocking.execute(task);
+            } catch (RejectedExecutionException e) {
+                // shut down meanwhile, don't leave the caller waiting for a result
+                task.cancel(false);
+            }
+        }, delay, unit);
+        return new HandedOff<V>(trigger, task);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0L) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        Periodic periodic = new Periodic(command);
+        periodic.scheduleAtFixedRate(initialDelay, period, unit);
+        return periodic;
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0L) {
+            throw new IllegalArgumentException("delay must be positive: " + delay);
+        }
+        Periodic periodic = new Periodic(command);
+        periodic.scheduleWithFixedDelay(initialDelay, delay, unit);
+        return periodic;
+    }
+
+    @Override
+    public void shutdown() {
+        blocking.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return blocking.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return blocking.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return blocking.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return blocking.awaitTermination(timeout, unit);
+    }
+}
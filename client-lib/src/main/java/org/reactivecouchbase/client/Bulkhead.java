@@ -0,0 +1,139 @@
+package org.reactivecouchbase.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Concurrency limit for one command group, with an optional bounded FIFO queue for requests
+ * waiting for a permit. Queued requests that can't get a permit before the queue timeout are rejected.
+ */
+public class Bulkhead {
+
+    private static class Waiter {
+        private final Runnable task;
+        private final Consumer<Throwable> onRejected;
+        private final Executor ec;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private volatile HashedWheelTimer.Timeout timeout;
+
+        private Waiter(Runnable task, Consumer<Throwable> onRejected, Executor ec) {
+            this.task = task;
+            this.onRejected = onRejected;
+            this.ec = ec;
+        }
+
+        private void cancelTimeout() {
+            HashedWheelTimer.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    private volatile CommandPolicy policy;
+
+    public Bulkhead(CommandPolicy policy) {
+        this.policy = policy;
+    }
+
+    public void update(CommandPolicy newPolicy) {
+        if (policy != newPolicy) {
+            policy = newPolicy;
+            drain();
+        }
+    }
+
+    public int activeRequests() {
+        return active.get();
+    }
+
+    public int maxConcurrentRequests() {
+        return policy.maxConcurrentRequests;
+    }
+
+    public int queuedRequests() {
+        return queued.get();
+    }
+
+    public boolean isSaturated() {
+        CommandPolicy p = policy;
+        return active.get() >= p.maxConcurrentRequests && queued.get() >= p.maxQueueSize;
+    }
+
+    private boolean tryAcquire() {
+        int max = policy.maxConcurrentRequests;
+        while (true) {
+            int current = active.get();
+            if (current >= max) {
+                return false;
+            }
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit only if one is free and no queued request is waiting for it, for optional work like hedged attempts.
+     */
+    boolean tryAcquireSpare() {
+        return waiters.isEmpty() && tryAcquire();
+    }
+
+    public void submit(Runnable task, Consumer<Throwable> onRejected, Executor ec, HashedWheelTimer timer) {
+        if (tryAcquire()) {
+            task.run();
+            return;
+        }
+        CommandPolicy p = policy;
+        if (queued.incrementAndGet() > p.maxQueueSize) {
+            queued.decrementAndGet();
+            onRejected.accept(new TooManyConcurrentRequestsException("Max allowed request is " + p.maxConcurrentRequests));
+            return;
+        }
+        final Waiter waiter = new Waiter(task, onRejected, ec);
+        waiters.offer(waiter);
+        waiter.timeout = timer.newTimeout(() -> ec.execute(() -> expire(waiter)), p.queueTimeout);
+        if (waiter.claimed.get()) {
+            waiter.cancelTimeout();
+        }
+        drain();
+    }
+
+    public void release() {
+        active.decrementAndGet();
+        drain();
+    }
+
+    private void expire(Waiter waiter) {
+        if (waiter.claimed.compareAndSet(false, true)) {
+            waiters.remove(waiter);
+            queued.decrementAndGet();
+            waiter.onRejected.accept(new TooManyConcurrentRequestsException("Request waited more than " + policy.queueTimeout.toHumanReadable() + " for a permit"));
+        }
+    }
+
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter = waiters.poll();
+            if (waiter == null || !waiter.claimed.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            waiter.cancelTimeout();
+            try {
+                waiter.ec.execute(waiter.task);
+            } catch (Throwable t) {
+                active.decrementAndGet();
+                waiter.onRejected.accept(t);
+            }
+        }
+    }
+}
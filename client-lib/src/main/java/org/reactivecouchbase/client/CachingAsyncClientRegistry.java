@@ -0,0 +1,204 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.collect.ImmutableList;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.concurrent.Promise;
+import org.reactivecouchbase.functional.Option;
+import org.reactivecouchbase.functional.Unit;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Serves lookups of a (remote) AsyncClientRegistry from a local snapshot refreshed in the background.
+ * Refreshes are spread with some jitter around the configured interval. When a refresh fails or takes longer than the
+ * interval, the last good snapshot is kept. Only the very first lookups wait for the registry, until a snapshot exists.
+ * A response arriving after the one of a more recent refresh is ignored.
+ */
+public class CachingAsyncClientRegistry implements AsyncClientRegistry {
+
+    private final AsyncClientRegistry registry;
+    private final Duration interval;
+    private final double jitter;
+    private final ScheduledExecutorService ec;
+    private final CopyOnWriteArrayList<RegistryListener> listeners = new CopyOnWriteArrayList<RegistryListener>();
+    private final AtomicReference<Promise<ServiceIndex>> pending = new AtomicReference<Promise<ServiceIndex>>();
+    private final AtomicLong refreshes = new AtomicLong(0L);
+    private volatile ServiceIndex index = null;
+    private volatile boolean stopped = false;
+    private volatile ScheduledFuture<?> next = null;
+    private long version = 0L;
+    // the refresh the snapshot comes from
+    private long applied = 0L;
+
+    private CachingAsyncClientRegistry(AsyncClientRegistry registry, Duration interval, double jitter, ScheduledExecutorService ec) {
+        this.registry = registry;
+        this.interval = interval;
+        this.jitter = jitter;
+        this.ec = ec;
+    }
+
+    public static CachingAsyncClientRegistry of(AsyncClientRegistry registry, Duration interval, ScheduledExecutorService ec) {
+        return of(registry, interval, 0.2, ec);
+    }
+
+    public static CachingAsyncClientRegistry of(AsyncClientRegistry registry, Duration interval, double jitter, ScheduledExecutorService ec) {
+        CachingAsyncClientRegistry caching = new CachingAsyncClientRegistry(registry, interval, jitter, ec);
+        caching.refresh();
+        caching.schedule();
+        return caching;
+    }
+
+    private void schedule() {
+        long millis = interval.toMillis();
+        long delay = Math.max(1L, (long) (millis * (1.0 + jitter * (ThreadLocalRandom.current().nextDouble() * 2.0 - 1.0))));
+        try {
+            next = ec.schedule(() -> {
+                if (!stopped) {
+                    refresh();
+                    schedule();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            if (stopped) {
+                next.cancel(false);
+            }
+        } catch (RejectedExecutionException e) {
+            stopped = true;
+        }
+    }
+
+    /**
+     * Fetches a new snapshot now, unless a refresh is already running, in which case its result is returned.
+     */
+    public Future<ServiceIndex> refresh() {
+        Promise<ServiceIndex> promise = new Promise<ServiceIndex>();
+        while (!pending.compareAndSet(null, promise)) {
+            Promise<ServiceIndex> running = pending.get();
+            if (running != null) {
+                return running.future();
+            }
+        }
+        final long sequence = refreshes.incrementAndGet();
+        try {
+            ScheduledFuture<?> timeout = ec.schedule(() -> {
+                promise.tryFailure(new TimeoutException("Registry refresh took more than " + interval.toHumanReadable()));
+            }, interval.toMillis(), TimeUnit.MILLISECONDS);
+            promise.future().andThen(ttry -> timeout.cancel(false));
+            registry.allServices(ec).andThen(ttry -> {
+                for (List<ServiceDescriptor> services : ttry.asSuccess()) {
+                    promise.trySuccess(update(sequence, services));
+                }
+                for (Throwable t : ttry.asFailure()) {
+                    promise.tryFailure(t);
+                }
+            });
+        } catch (Throwable t) {
+            promise.tryFailure(t);
+        }
+        promise.future().andThen(ttry -> pending.compareAndSet(promise, null));
+        return promise.future();
+    }
+
+    private ServiceIndex current() {
+        ServiceIndex current = index;
+        return current == null ? ServiceIndex.EMPTY : current;
+    }
+
+    private synchronized ServiceIndex update(long sequence, List<ServiceDescriptor> services) {
+        ServiceIndex previous = index;
+        if (sequence < applied) {
+            // late response of a refresh that has timed out, a more recent one is already there
+            return current();
+        }
+        applied = sequence;
+        Map<String, ServiceDescriptor> before = new HashMap<String, ServiceDescriptor>();
+        if (previous != null) {
+            for (ServiceDescriptor desc : previous.all()) {
+                before.put(desc.uid, desc);
+            }
+        }
+        ImmutableList.Builder<ServiceDescriptor> added = ImmutableList.builder();
+        for (ServiceDescriptor desc : services) {
+            if (before.remove(desc.uid) == null) {
+                added.add(desc);
+            }
+        }
+        RegistryChange change = new RegistryChange(version + 1, added.build(), ImmutableList.copyOf(before.values()));
+        if (previous != null && change.isEmpty()) {
+            return previous;
+        }
+        version = change.version;
+        index = ServiceIndex.of(services);
+        for (RegistryListener listener : listeners) {
+            fire(listener, change);
+        }
+        return index;
+    }
+
+    private void fire(RegistryListener listener, RegistryChange change) {
+        try {
+            listener.onChange(change);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    @Override
+    public Future<List<ServiceDescriptor>> allServices(ExecutorService ec) {
+        ServiceIndex current = index;
+        if (current != null) {
+            return Future.<List<ServiceDescriptor>>successful(current.all());
+        }
+        return refresh().map(ServiceIndex::all, ec);
+    }
+
+    @Override
+    public Future<List<ServiceDescriptor>> services(String name, Option<String> version, ImmutableList<String> roles, ExecutorService ec) {
+        ServiceIndex current = index;
+        if (current != null) {
+            return Future.<List<ServiceDescriptor>>successful(current.services(name, version, roles));
+        }
+        return refresh().map(i -> i.services(name, version, roles), ec);
+    }
+
+    @Override
+    public Future<Registration> register(ServiceDescriptor desc, ExecutorService ec) {
+        Future<Registration> registration = registry.register(desc, ec);
+        registration.andThen(ttry -> refresh());
+        return registration;
+    }
+
+    @Override
+    public Future<Unit> unregister(String uuid, ExecutorService ec) {
+        Future<Unit> unregistration = registry.unregister(uuid, ec);
+        unregistration.andThen(ttry -> refresh());
+        return unregistration;
+    }
+
+    @Override
+    public synchronized Option<Registration> subscribe(RegistryListener listener) {
+        listeners.add(listener);
+        fire(listener, new RegistryChange(version, current().all(), ImmutableList.<ServiceDescriptor>of()));
+        return Option.<Registration>apply(() -> listeners.remove(listener));
+    }
+
+    public void stop() {
+        stopped = true;
+        ScheduledFuture<?> task = next;
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
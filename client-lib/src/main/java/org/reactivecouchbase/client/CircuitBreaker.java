@@ -1,6 +1,7 @@
 package org.reactivecouchbase.client;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.reactivecouchbase.common.Duration;
 
 public class CircuitBreaker {
@@ -9,45 +10,146 @@ public class CircuitBreaker {
         UNIQUE_PER_CONTEXT, UNIQUE_PER_COMMAND
     }
 
-    private static final int circuitBreakerRequestVolumeThreshold = 1;
-    private static final double circuitBreakerErrorThresholdPercentage = 50.0;
-    private static final String circuitBreakerMetricsWindow = "10 sec";
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // a state and the time the circuit last opened, published together
+    private static class Status {
+        private final State state;
+        private final long openedAt;
+
+        private Status(State state, long openedAt) {
+            this.state = state;
+            this.openedAt = openedAt;
+        }
+    }
+
+    volatile CircuitBreakerHealth metrics;
+    private volatile CommandPolicy policy;
+    private final AtomicReference<Status> status = new AtomicReference<Status>(new Status(State.CLOSED, 0L));
+    private final AtomicInteger probes = new AtomicInteger(0);
+    private volatile long probedAt = 0L;
+
+    public CircuitBreaker() {
+        this(CommandPolicy.defaults());
+    }
+
+    public CircuitBreaker(CommandPolicy policy) {
+        this.policy = policy;
+        this.metrics = new CircuitBreakerHealth(policy.metricsWindow);
+    }
 
-    final CircuitBreakerHealth metrics = new CircuitBreakerHealth(Duration.parse(circuitBreakerMetricsWindow));
-    private final AtomicBoolean circuitOpen = new AtomicBoolean(false);
+    public CommandPolicy policy() {
+        return policy;
+    }
+
+    public void update(CommandPolicy newPolicy) {
+        CommandPolicy current = policy;
+        if (current == newPolicy) {
+            return;
+        }
+        if (current.metricsWindow.toMillis() != newPolicy.metricsWindow.toMillis()) {
+            metrics = new CircuitBreakerHealth(newPolicy.metricsWindow);
+        }
+        policy = newPolicy;
+    }
 
     public void markSuccess(Duration duration) {
-        if (circuitOpen.get()) {
-            metrics.reset();
-            circuitOpen.set(false);
+        Status current = status.get();
+        if (current.state == State.HALF_OPEN) {
+            // only a probe can tell the backend is back, not a call that started before the circuit opened
+            if (isProbe(current, duration) && status.compareAndSet(current, new Status(State.CLOSED, 0L))) {
+                metrics.reset();
+                probes.set(0);
+            }
         } else {
-            metrics.incrementTotalRequests();
-            metrics.incrementSuccesses();
-            metrics.incrementTotalTime(duration);
+            metrics.markSuccess(duration);
         }
     }
 
     public void markFailure(Duration duration) {
-        metrics.incrementTotalRequests();
-        metrics.incrementErrors();
-        metrics.incrementTotalTime(duration);
+        if (!reopen(duration)) {
+            metrics.markFailure(duration);
+        }
+    }
+
+    public void markTimeout(Duration duration) {
+        if (!reopen(duration)) {
+            metrics.markTimeout(duration);
+        }
+    }
+
+    public void markRejection() {
+        metrics.markRejection();
+    }
+
+    private boolean reopen(Duration duration) {
+        Status current = status.get();
+        if (current.state == State.HALF_OPEN) {
+            if (isProbe(current, duration) && status.compareAndSet(current, new Status(State.OPEN, System.currentTimeMillis()))) {
+                probes.set(0);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // nothing is let through while open, so a call that started before is not a probe
+    private boolean isProbe(Status halfOpen, Duration duration) {
+        return System.currentTimeMillis() - duration.toMillis() >= halfOpen.openedAt;
+    }
+
+    private boolean tryProbe() {
+        while (true) {
+            int current = probes.get();
+            if (current >= policy.halfOpenMaxProbes) {
+                return false;
+            }
+            if (probes.compareAndSet(current, current + 1)) {
+                probedAt = System.currentTimeMillis();
+                return true;
+            }
+        }
+    }
+
+    public State state() {
+        return status.get().state;
     }
 
     public boolean isOpen() {
-        if (circuitOpen.get()) {
+        Status current = status.get();
+        if (current.state != State.CLOSED) {
             return true;
         }
-        if (metrics.getTotalRequests() < circuitBreakerRequestVolumeThreshold) {
+        CommandPolicy p = policy;
+        CircuitBreakerHealth.Snapshot snapshot = metrics.snapshot();
+        if (snapshot.getTotalRequests() < p.requestVolumeThreshold) {
             return false;
         }
-        if (metrics.getErrorPercentage() < circuitBreakerErrorThresholdPercentage) {
+        if (snapshot.getErrorPercentage() < p.errorThresholdPercentage) {
             return false;
         } else {
-            return circuitOpen.compareAndSet(false, true);
+            status.compareAndSet(current, new Status(State.OPEN, System.currentTimeMillis()));
+            return true;
         }
     }
 
     public boolean allowRequest() {
-        return !isOpen();
+        if (!isOpen()) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        long sleepWindowMillis = policy.sleepWindow.toMillis();
+        Status current = status.get();
+        if (current.state == State.OPEN && (now - current.openedAt) >= sleepWindowMillis) {
+            if (status.compareAndSet(current, new Status(State.HALF_OPEN, current.openedAt))) {
+                probes.set(0);
+            }
+        } else if (current.state == State.HALF_OPEN && (now - probedAt) >= sleepWindowMillis) {
+            // probes that never reported back (collapsed, cached, lost) must not keep the circuit half open forever
+            probes.set(0);
+        }
+        return status.get().state == State.HALF_OPEN && tryProbe();
     }
 }
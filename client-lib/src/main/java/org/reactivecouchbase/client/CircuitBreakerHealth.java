@@ -1,54 +1,170 @@
 package org.reactivecouchbase.client;
 
 import org.reactivecouchbase.common.Duration;
-import org.reactivecouchbase.common.MeasuredRate;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Rolling window of health counters split in time buckets.
+ *
+ * Each bucket holds striped counters, so concurrent completions on the same command don't contend
+ * on a single atomic. Buckets are rolled lazily with a CAS when a writer or a reader reaches a slot
+ * that belongs to an older period, no lock is ever taken.
+ */
 public class CircuitBreakerHealth {
 
-    private final AtomicLong totalTime = new AtomicLong(0);
+    public static final int DEFAULT_BUCKETS = 10;
 
-    private final MeasuredRate totalRequests;
+    private static class Bucket {
+        private final long period;
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
 
-    private final MeasuredRate totalErrorRequests;
+        private Bucket(long period) {
+            this.period = period;
+        }
+    }
+
+    public static class Snapshot {
+
+        public final long successes;
+        public final long failures;
+        public final long timeouts;
+        public final long rejections;
+        public final long totalTime;
+
+        Snapshot(long successes, long failures, long timeouts, long rejections, long totalTime) {
+            this.successes = successes;
+            this.failures = failures;
+            this.timeouts = timeouts;
+            this.rejections = rejections;
+            this.totalTime = totalTime;
+        }
+
+        public long getTotalRequests() {
+            return successes + failures + timeouts + rejections;
+        }
+
+        public long getErrors() {
+            return failures + timeouts + rejections;
+        }
+
+        public double getErrorPercentage() {
+            long total = getTotalRequests();
+            if (total == 0) {
+                return 0.0;
+            }
+            return (getErrors() * 100.0) / total;
+        }
+
+        public double getMeanTime() {
+            long completed = successes + failures + timeouts;
+            if (completed == 0) {
+                return 0.0;
+            }
+            return ((double) totalTime) / completed;
+        }
 
-    private final MeasuredRate totalSuccessRequests;
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "successes=" + successes +
+                    ", failures=" + failures +
+                    ", timeouts=" + timeouts +
+                    ", rejections=" + rejections +
+                    ", totalTime=" + totalTime +
+                    '}';
+        }
+    }
+
+    private final long bucketMillis;
+    private final int numberOfBuckets;
+    private final AtomicReferenceArray<Bucket> buckets;
 
     public CircuitBreakerHealth(Duration windowDuration) {
-        this.totalRequests = new MeasuredRate(windowDuration.toMillis());
-        this.totalErrorRequests = new MeasuredRate(windowDuration.toMillis());
-        this.totalSuccessRequests = new MeasuredRate(windowDuration.toMillis());
+        this(windowDuration, DEFAULT_BUCKETS);
+    }
+
+    public CircuitBreakerHealth(Duration windowDuration, int numberOfBuckets) {
+        if (numberOfBuckets < 1) {
+            throw new IllegalArgumentException("A rolling window needs at least one bucket");
+        }
+        this.numberOfBuckets = numberOfBuckets;
+        this.bucketMillis = Math.max(1L, windowDuration.toMillis() / numberOfBuckets);
+        this.buckets = new AtomicReferenceArray<Bucket>(numberOfBuckets);
+    }
+
+    private Bucket currentBucket() {
+        long period = System.currentTimeMillis() / bucketMillis;
+        int index = (int) (period % numberOfBuckets);
+        Bucket bucket = buckets.get(index);
+        while (bucket == null || bucket.period < period) {
+            Bucket fresh = new Bucket(period);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+            bucket = buckets.get(index);
+        }
+        return bucket;
+    }
+
+    public void markSuccess(Duration duration) {
+        Bucket bucket = currentBucket();
+        bucket.successes.increment();
+        bucket.totalTime.add(duration.toMillis());
     }
 
-    public void incrementTotalRequests() {
-        totalRequests.increment();
+    public void markFailure(Duration duration) {
+        Bucket bucket = currentBucket();
+        bucket.failures.increment();
+        bucket.totalTime.add(duration.toMillis());
     }
 
-    public void incrementErrors() {
-        totalErrorRequests.increment();
+    public void markTimeout(Duration duration) {
+        Bucket bucket = currentBucket();
+        bucket.timeouts.increment();
+        bucket.totalTime.add(duration.toMillis());
     }
 
-    public void incrementTotalTime(Duration duration) {
-        totalTime.addAndGet(duration.toMillis());
+    public void markRejection() {
+        currentBucket().rejections.increment();
     }
 
-    public void incrementSuccesses() {
-        totalSuccessRequests.increment();
+    public Snapshot snapshot() {
+        long oldest = (System.currentTimeMillis() / bucketMillis) - numberOfBuckets;
+        long successes = 0L;
+        long failures = 0L;
+        long timeouts = 0L;
+        long rejections = 0L;
+        long totalTime = 0L;
+        for (int i = 0; i < numberOfBuckets; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.period > oldest) {
+                successes += bucket.successes.sum();
+                failures += bucket.failures.sum();
+                timeouts += bucket.timeouts.sum();
+                rejections += bucket.rejections.sum();
+                totalTime += bucket.totalTime.sum();
+            }
+        }
+        return new Snapshot(successes, failures, timeouts, rejections, totalTime);
     }
 
     public long getTotalRequests() {
-        return totalRequests.getCount();
+        return snapshot().getTotalRequests();
     }
 
     public double getErrorPercentage() {
-        return (totalErrorRequests.getCount() * 100.0) / totalRequests.getCount();
+        return snapshot().getErrorPercentage();
     }
 
     public void reset() {
-        totalTime.set(0);
-        totalRequests.reset();
-        totalErrorRequests.reset();
-        totalSuccessRequests.reset();
+        for (int i = 0; i < numberOfBuckets; i++) {
+            buckets.set(i, null);
+        }
     }
 }
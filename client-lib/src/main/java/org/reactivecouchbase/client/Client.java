@@ -32,6 +32,34 @@ public interface Client {
         return new LoadbalancedClient(name, version, roles, registry);
     }
 
+    static Client client(ClientRegistry registry, String name, LoadBalancingStrategy strategy) {
+        return client(registry, name, Option.<String>none(), ImmutableList.<String>of(), strategy);
+    }
+
+    static Client client(ClientRegistry registry, String name, String version, LoadBalancingStrategy strategy) {
+        return client(registry, name, Option.apply(version), ImmutableList.<String>of(), strategy);
+    }
+
+    static Client client(ClientRegistry registry, String name, Option<String> version, ImmutableList<String> roles, LoadBalancingStrategy strategy) {
+        return new LoadbalancedClient(name, version, roles, registry, strategy);
+    }
+
+    static Client client(ClientRegistry registry, String name, OutlierPolicy outlierPolicy) {
+        return client(registry, name, Option.<String>none(), ImmutableList.<String>of(), LoadBalancingStrategy.roundRobin(), outlierPolicy);
+    }
+
+    static Client client(ClientRegistry registry, String name, Option<String> version, ImmutableList<String> roles, LoadBalancingStrategy strategy, OutlierPolicy outlierPolicy) {
+        return new LoadbalancedClient(name, version, roles, registry, strategy, Option.apply(outlierPolicy));
+    }
+
+    static ConsistentHashClient consistentHash(ClientRegistry registry, String name) {
+        return consistentHash(registry, name, Option.<String>none(), ImmutableList.<String>of());
+    }
+
+    static ConsistentHashClient consistentHash(ClientRegistry registry, String name, Option<String> version, ImmutableList<String> roles) {
+        return new ConsistentHashClient(name, version, roles, registry, 160, 1.25);
+    }
+
     static Client compose(ClientRegistry registry, String name, Option<String> version, ImmutableList<String> roles) {
         return new Client() {
             @Override
@@ -12,6 +12,21 @@ public interface ClientRegistry {
     Registration register(final ServiceDescriptor desc);
     void unregister(final String uuid);
 
+    /**
+     * Notifies the listener of every change of the registry, starting with the current snapshot.
+     * @return the subscription, none if the registry can't tell about its changes
+     */
+    default Option<Registration> subscribe(RegistryListener listener) {
+        return Option.none();
+    }
+
+    /**
+     * @return the version of the content of the registry, increased on each change, negative if the registry doesn't track it
+     */
+    default long version() {
+        return -1L;
+    }
+
     default void unregister(final ServiceDescriptor desc) {
         unregister(desc.uid);
     }
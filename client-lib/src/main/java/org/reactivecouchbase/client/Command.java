@@ -2,7 +2,9 @@ package org.reactivecouchbase.client;
 
 import org.reactivecouchbase.common.Duration;
 import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.functional.Option;
 
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -11,7 +13,8 @@ public abstract class Command<T> {
     public static final Duration FOREVER = new Duration(Long.MAX_VALUE, TimeUnit.HOURS);
 
     public Future<T> runAsync(ScheduledExecutorService ec) {
-        return Future.async(this::run, ec);
+        final Option<Deadline> deadline = Deadline.current();
+        return Future.async(() -> Deadline.within(deadline, this::run), ec);
     }
 
     public T run() {
@@ -26,6 +29,10 @@ public abstract class Command<T> {
         return this.getClass().getName();
     }
 
+    public String group() {
+        return name();
+    }
+
     public T fallback() {
         return null;
     }
@@ -38,6 +45,18 @@ public abstract class Command<T> {
         return cacheKey();
     }
 
+    public CommandPolicy policy() {
+        return null;
+    }
+
+    public String batchGroup() {
+        return null;
+    }
+
+    public BatchCommand<T> batch(List<String> collapseKeys) {
+        return null;
+    }
+
     public int retry() {
         return 0;
     }
@@ -45,4 +64,18 @@ public abstract class Command<T> {
     public boolean exponentialBackoff() {
         return true;
     }
+
+    /**
+     * @return whether a failed execution can be retried, not when the failure comes from the protections of the context
+     */
+    public boolean isRetryable(Throwable t) {
+        return !(t instanceof CircuitOpenException) && !(t instanceof TooManyConcurrentRequestsException);
+    }
+
+    /**
+     * @return the policy to hedge slow executions of the command, none by default
+     */
+    public HedgePolicy hedge() {
+        return null;
+    }
 }
\ No newline at end of file
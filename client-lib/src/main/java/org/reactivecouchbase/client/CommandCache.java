@@ -1,8 +1,35 @@
 package org.reactivecouchbase.client;
 
+import java.util.function.Supplier;
+
 public interface CommandCache {
 
     Object get(String key);
+
+    /**
+     * Same as get(key), but an implementation serving stale values may use refresh to get a fresh one in the background.
+     */
+    default Object get(String key, Supplier<Object> refresh) {
+        return get(key);
+    }
+
     void put(String key, Object value);
+
+    /**
+     * Stores value if there is no entry for key yet and returns null, otherwise returns the existing value.
+     * Implementations should make it atomic, the default one is not.
+     */
+    default Object putIfAbsent(String key, Object value) {
+        Object existing = get(key);
+        if (existing == null) {
+            put(key, value);
+        }
+        return existing;
+    }
+
     void cleanUp();
+
+    default CommandCacheStats stats() {
+        return CommandCacheStats.EMPTY;
+    }
 }
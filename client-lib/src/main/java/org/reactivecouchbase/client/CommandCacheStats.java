@@ -0,0 +1,51 @@
+package org.reactivecouchbase.client;
+
+public class CommandCacheStats {
+
+    public static final CommandCacheStats EMPTY = new CommandCacheStats(0L, 0L, 0L, 0L, 0L, 0L, 0L);
+
+    public final long hitCount;
+    public final long missCount;
+    public final long evictionCount;
+    public final long loadSuccessCount;
+    public final long loadFailureCount;
+    public final long totalLoadTimeMillis;
+    public final long size;
+
+    public CommandCacheStats(long hitCount, long missCount, long evictionCount, long loadSuccessCount, long loadFailureCount, long totalLoadTimeMillis, long size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeMillis = totalLoadTimeMillis;
+        this.size = size;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0L ? 1.0 : ((double) hitCount) / requests;
+    }
+
+    public double averageLoadPenaltyMillis() {
+        long loads = loadSuccessCount + loadFailureCount;
+        return loads == 0L ? 0.0 : ((double) totalLoadTimeMillis) / loads;
+    }
+
+    @Override
+    public String toString() {
+        return "CommandCacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTimeMillis=" + totalLoadTimeMillis +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -1,16 +1,27 @@
 package org.reactivecouchbase.client;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.reactivecouchbase.common.Duration;
 import org.reactivecouchbase.concurrent.Future;
 import org.reactivecouchbase.concurrent.Promise;
+import org.reactivecouchbase.functional.Option;
+import org.reactivecouchbase.functional.Try;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CommandCollapser {
 
@@ -20,62 +31,253 @@ public class CommandCollapser {
         private final Future<T> future;
         private final CommandContext ctx;
         private final long start;
+        private final Option<Deadline> parent;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
 
-        private ExecutionContext(Command<T> command, Promise<T> promise, Future<T> future, CommandContext ctx, long start) {
+        private ExecutionContext(Command<T> command, Promise<T> promise, Future<T> future, CommandContext ctx, long start, Option<Deadline> parent) {
             this.command = command;
             this.promise = promise;
             this.future = future;
             this.ctx = ctx;
             this.start = start;
+            this.parent = parent;
         }
 
         public String collapseKey() {
             return command.collapseKey();
         }
 
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
         public void execute() {
-            ctx.executeRequest(command, promise, start);
+            try {
+                ctx.executeRequest(command, promise, start, parent);
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        private void fail(Throwable t) {
+            ctx.fallback(command, promise, t);
+        }
+
+        private void complete(Try<? extends Map<String, ?>> results) {
+            for (Throwable t : results.asFailure()) {
+                fail(t);
+            }
+            for (Map<String, ?> values : results.asSuccess()) {
+                if (values == null) {
+                    fail(new NullPointerException("Batch " + command.batchGroup() + " returned no result"));
+                    return;
+                }
+                T value = (T) values.get(collapseKey());
+                if (value == null) {
+                    fail(new NoSuchElementException("No value for key '" + collapseKey() + "' in batch " + command.batchGroup()));
+                } else {
+                    promise.trySuccess(value);
+                }
+            }
+        }
+    }
+
+    private static class Window {
+        private final ConcurrentHashMap<String, ExecutionContext<?>> requests = new ConcurrentHashMap<String, ExecutionContext<?>>();
+        private final ConcurrentHashMap<String, ConcurrentHashMap<String, ExecutionContext<?>>> batches = new ConcurrentHashMap<String, ConcurrentHashMap<String, ExecutionContext<?>>>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean sealed = false;
+    }
+
+    private static class ArrivalRate {
+        private static final double ALPHA = 0.2;
+        private final AtomicLong lastArrival = new AtomicLong(0L);
+        private volatile double meanInterval = 0.0;
+
+        // races between concurrent arrivals only blur the average a bit, that's fine for an estimate
+        private long record(long now) {
+            long previous = lastArrival.getAndSet(now);
+            if (previous != 0L) {
+                long interval = Math.max(0L, now - previous);
+                double mean = meanInterval;
+                meanInterval = mean == 0.0 ? interval : mean + ALPHA * (interval - mean);
+            }
+            return (long) meanInterval;
         }
     }
 
-    private final Object lock = new Object();
     private final Duration every;
+    private final int maxBatchSize;
+    private final boolean adaptive;
+    private final long minWindowNanos;
+    private final long maxWindowNanos;
+    private final Cache<String, ArrivalRate> arrivals;
     private final ScheduledExecutorService ec = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<Window> current = new AtomicReference<Window>(new Window());
 
-    private ConcurrentHashMap<String, ExecutionContext<?>> queue = new ConcurrentHashMap<String, ExecutionContext<?>>();
-
-    private CommandCollapser(Duration every) {
+    private CommandCollapser(Duration every, int maxBatchSize) {
         this.every = every;
+        this.maxBatchSize = maxBatchSize;
+        this.adaptive = false;
+        this.minWindowNanos = TimeUnit.MILLISECONDS.toNanos(every.toMillis());
+        this.maxWindowNanos = this.minWindowNanos;
+        this.arrivals = null;
     }
 
-    <T> Future<T> add(Command<T> command, Promise<T> promise, Future<T> future, CommandContext ctx, long start) {
-        synchronized (lock) {
-            String key = command.collapseKey();
-            if (key == null) return null;
-            if (!queue.containsKey(key)) {
-                ExecutionContext<T> e = (ExecutionContext<T>) queue.putIfAbsent(key, new ExecutionContext<T>(command, promise, future, ctx, start));
-                if (e != null) {
-                    return e.future;
+    private CommandCollapser(Duration minWindow, Duration maxWindow, int maxBatchSize) {
+        this.every = maxWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.adaptive = true;
+        this.minWindowNanos = TimeUnit.MILLISECONDS.toNanos(minWindow.toMillis());
+        this.maxWindowNanos = Math.max(this.minWindowNanos, TimeUnit.MILLISECONDS.toNanos(maxWindow.toMillis()));
+        this.arrivals = CacheBuilder.newBuilder().maximumSize(10000).expireAfterAccess(1, TimeUnit.MINUTES).build();
+    }
+
+    private ArrivalRate arrivalRate(String key) {
+        ArrivalRate rate = arrivals.getIfPresent(key);
+        if (rate == null) {
+            ArrivalRate newRate = new ArrivalRate();
+            rate = arrivals.asMap().putIfAbsent(key, newRate);
+            if (rate == null) {
+                rate = newRate;
+            }
+        }
+        return rate;
+    }
+
+    private long windowFor(long meanInterval) {
+        long mergeTarget = maxBatchSize == Integer.MAX_VALUE ? 2L : maxBatchSize;
+        long window = meanInterval > maxWindowNanos / mergeTarget ? maxWindowNanos : meanInterval * mergeTarget;
+        return Math.max(minWindowNanos, window);
+    }
+
+    <T> Future<T> add(Command<T> command, Promise<T> promise, Future<T> future, CommandContext ctx, long start, Option<Deadline> parent) {
+        String key = command.collapseKey();
+        if (key == null) return null;
+        String group = command.batchGroup();
+        Window window = current.get();
+        ConcurrentHashMap<String, ExecutionContext<?>> requests = window.requests;
+        if (group != null) {
+            requests = window.batches.get(group);
+            if (requests == null) {
+                window.batches.putIfAbsent(group, new ConcurrentHashMap<String, ExecutionContext<?>>());
+                requests = window.batches.get(group);
+            }
+        }
+        long meanInterval = 0L;
+        if (adaptive) {
+            meanInterval = arrivalRate(group == null ? key : group).record(System.nanoTime());
+            if (meanInterval == 0L || meanInterval > maxWindowNanos) {
+                // nothing is likely to arrive before the end of the window, don't make this request wait for nothing
+                ExecutionContext<T> pending = (ExecutionContext<T>) requests.get(key);
+                return pending == null ? null : pending.future;
+            }
+        }
+        ExecutionContext<T> e = new ExecutionContext<T>(command, promise, future, ctx, start, parent);
+        ExecutionContext<T> existing = (ExecutionContext<T>) requests.putIfAbsent(key, e);
+        if (existing != null) {
+            return existing.future;
+        }
+        if (window.sealed) {
+            // the window has been flushed concurrently and may not have seen this request
+            if (e.claim()) {
+                if (group == null) {
+                    e.execute();
+                } else {
+                    executeBatch(Collections.<ExecutionContext<?>>singletonList(e));
                 }
-                return future;
-            } else {
-                return ((ExecutionContext<T>) queue.get(key)).future;
+            }
+            return future;
+        }
+        if (window.size.incrementAndGet() >= maxBatchSize) {
+            try {
+                ec.execute(() -> flush(window));
+            } catch (RejectedExecutionException ree) {
+                flush(window);
+            }
+        } else if (adaptive && window.scheduled.compareAndSet(false, true)) {
+            try {
+                ec.schedule(() -> flush(window), windowFor(meanInterval), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ree) {
+                flush(window);
+            }
+        }
+        return future;
+    }
+
+    private void flush(Window window) {
+        if (!current.compareAndSet(window, new Window())) {
+            return;
+        }
+        window.sealed = true;
+        for (ExecutionContext<?> e : window.requests.values()) {
+            if (e.claim()) {
+                e.execute();
+            }
+        }
+        for (ConcurrentHashMap<String, ExecutionContext<?>> requests : window.batches.values()) {
+            List<ExecutionContext<?>> batch = new ArrayList<ExecutionContext<?>>(requests.size());
+            for (ExecutionContext<?> e : requests.values()) {
+                if (e.claim()) {
+                    batch.add(e);
+                }
+            }
+            if (!batch.isEmpty()) {
+                executeBatch(batch);
             }
         }
     }
 
     private void executeWaitingRequests() {
-        synchronized (lock) {
-            if (queue.isEmpty()) return;
-            List<String> remove = new ArrayList<String>();
-            for (Map.Entry<String, ExecutionContext<?>> entry : queue.entrySet()) {
-                remove.add(entry.getKey());
-                entry.getValue().execute();
+        Window window = current.get();
+        if (window.size.get() > 0) {
+            flush(window);
+        }
+    }
+
+    private <T> void executeBatch(List<ExecutionContext<?>> batch) {
+        ExecutionContext<T> first = (ExecutionContext<T>) batch.get(0);
+        List<String> keys = new ArrayList<String>(batch.size());
+        // the batch is needed as long as one of the callers still waits for it
+        Option<Deadline> parent = first.parent;
+        for (ExecutionContext<?> e : batch) {
+            keys.add(e.collapseKey());
+            parent = Deadline.latest(parent, e.parent);
+        }
+        BatchCommand<T> batchCommand;
+        try {
+            batchCommand = first.command.batch(keys);
+        } catch (Throwable t) {
+            for (ExecutionContext<?> e : batch) {
+                e.fail(t);
             }
-            for (String s : remove) {
-                queue.remove(s);
+            return;
+        }
+        if (batchCommand == null) {
+            for (ExecutionContext<?> e : batch) {
+                e.execute();
             }
+            return;
         }
+        Future<Map<String, T>> results;
+        try {
+            results = first.ctx.execute(batchCommand, parent);
+        } catch (Throwable t) {
+            for (ExecutionContext<?> e : batch) {
+                e.fail(t);
+            }
+            return;
+        }
+        results.andThen(ttry -> {
+            for (ExecutionContext<?> e : batch) {
+                try {
+                    e.complete(ttry);
+                } catch (Throwable t) {
+                    e.fail(t);
+                }
+            }
+        });
     }
 
     private void schedule(long v, TimeUnit u) {
@@ -109,8 +311,21 @@ public class CommandCollapser {
     }
 
     public static CommandCollapser of(Duration d) {
-        CommandCollapser collapser = new CommandCollapser(d);
+        return of(d, Integer.MAX_VALUE);
+    }
+
+    public static CommandCollapser of(Duration d, int maxBatchSize) {
+        CommandCollapser collapser = new CommandCollapser(d, maxBatchSize);
         collapser.start();
         return collapser;
     }
+
+    public static CommandCollapser adaptive(Duration minWindow, Duration maxWindow) {
+        return adaptive(minWindow, maxWindow, Integer.MAX_VALUE);
+    }
+
+    public static CommandCollapser adaptive(Duration minWindow, Duration maxWindow, int maxBatchSize) {
+        // no periodic tick here, each window schedules its own flush when its first request arrives
+        return new CommandCollapser(minWindow, maxWindow, maxBatchSize);
+    }
 }
@@ -8,160 +8,678 @@ import org.reactivecouchbase.concurrent.Promise;
 import org.reactivecouchbase.functional.Option;
 import org.reactivecouchbase.functional.Try;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class CommandContext {
 
+    // shared by a context and the contexts derived from it with the with* methods
+    private static class SharedMetrics {
+        private final ConcurrentHashMap<String, CommandMetrics> metrics = new ConcurrentHashMap<String, CommandMetrics>();
+        private final AtomicReference<ScheduledFuture<?>> publication = new AtomicReference<ScheduledFuture<?>>();
+    }
+
     private static final String DEFAULT_BREAKER = "__DEFAULT_BREAKER__";
+    private static final Duration LATENCY_WINDOW = Duration.parse("10 sec");
+    private static final Duration RETRY_BUDGET_TTL = Duration.parse("10 sec");
+    private static final Duration DEFAULT_PUBLISH_INTERVAL = Duration.parse("10 sec");
     private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final ConcurrentHashMap<String, CommandPolicy> policies;
     private final Option<CommandCache> cache;
     private final Option<CommandCollapser> collapser;
     private final ScheduledExecutorService scheduledExecutorService;
-    private final int allowedThreads;
+    private final HashedWheelTimer timer;
     private final CircuitBreaker.Strategy strategy;
+    private final Option<MetricsPublisher> publisher;
+    private final Duration publishInterval;
+    private final Option<CommandEventStream> events;
+    private final Option<ExecutorService> blockingExecutor;
+    // given to Command.runAsync
+    private final ScheduledExecutorService commandExecutor;
+    private volatile CommandPolicy defaultPolicy;
 
-    private final AtomicInteger counter = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentHashMap<String, RequestBudget> hedgeBudgets = new ConcurrentHashMap<String, RequestBudget>();
+    private final SharedMetrics shared;
+    private final ConcurrentHashMap<String, CommandMetrics> metrics;
+    private final ConcurrentHashMap<String, RequestBudget> retryBudgets = new ConcurrentHashMap<String, RequestBudget>();
+    // the entries registered in the cache by the executions in flight, a fallback fails them instead of being cached
+    private final ConcurrentHashMap<Future<?>, Promise<?>> cacheEntries = new ConcurrentHashMap<Future<?>, Promise<?>>();
 
-    CommandContext(ScheduledExecutorService scheduledExecutorService, int allowedThreads, CircuitBreaker.Strategy strategy, Option<CommandCache> cache, Option<CommandCollapser> collapser) {
+    CommandContext(ScheduledExecutorService scheduledExecutorService, HashedWheelTimer timer, CommandPolicy defaultPolicy, Map<String, CommandPolicy> policies, CircuitBreaker.Strategy strategy, Option<CommandCache> cache, Option<CommandCollapser> collapser, Option<MetricsPublisher> publisher, Duration publishInterval, Option<CommandEventStream> events, Option<ExecutorService> blockingExecutor, SharedMetrics shared) {
         this.scheduledExecutorService = scheduledExecutorService;
-        this.allowedThreads = allowedThreads;
+        this.timer = timer;
+        this.defaultPolicy = defaultPolicy;
+        this.policies = new ConcurrentHashMap<String, CommandPolicy>(policies);
         this.cache = cache;
         this.collapser = collapser;
         this.strategy = strategy;
+        this.publisher = publisher;
+        this.publishInterval = publishInterval;
+        this.events = events;
+        this.blockingExecutor = blockingExecutor;
+        this.commandExecutor = blockingExecutor.isDefined() ? new BlockingScheduledExecutor(blockingExecutor.get(), scheduledExecutorService) : scheduledExecutorService;
+        this.shared = shared;
+        this.metrics = shared.metrics;
     }
 
     public static CommandContext of(int n) {
-        return new CommandContext(NamedExecutors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1, "COMMAND-CONTEXT"), n, CircuitBreaker.Strategy.UNIQUE_PER_COMMAND, Option.<CommandCache>none(), Option.<CommandCollapser>none());
+        return new CommandContext(NamedExecutors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1, "COMMAND-CONTEXT"), new HashedWheelTimer("COMMAND-CONTEXT-TIMER"), CommandPolicy.defaults().withMaxConcurrentRequests(n), new HashMap<String, CommandPolicy>(), CircuitBreaker.Strategy.UNIQUE_PER_COMMAND, Option.<CommandCache>none(), Option.<CommandCollapser>none(), Option.<MetricsPublisher>none(), DEFAULT_PUBLISH_INTERVAL, Option.<CommandEventStream>none(), Option.<ExecutorService>none(), new SharedMetrics());
     }
 
     public CommandContext withAllowedThreads(int n) {
-        return new CommandContext(this.scheduledExecutorService, n, this.strategy, this.cache, this.collapser);
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy.withMaxConcurrentRequests(n), this.policies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
     }
 
     public CommandContext withExecutor(ScheduledExecutorService ec) {
-        return new CommandContext(ec, this.allowedThreads, this.strategy, this.cache, this.collapser);
+        return new CommandContext(ec, this.timer, this.defaultPolicy, this.policies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
     }
 
+    /**
+     * Caches the results of the commands having a cache key. An execution that falls back is cached as a failure,
+     * each caller served from the cache then gets the fallback of its own command.
+     */
     public CommandContext withCache(CommandCache c) {
-        return new CommandContext(this.scheduledExecutorService, this.allowedThreads, this.strategy, Option.apply(c), this.collapser);
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, this.strategy, Option.apply(c), this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
     }
 
     public CommandContext withCollapser(CommandCollapser c) {
-        return new CommandContext(this.scheduledExecutorService, this.allowedThreads, this.strategy, this.cache, Option.apply(c));
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, this.strategy, this.cache, Option.apply(c), this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
     }
 
     public CommandContext withCircuitBreakerStrategy(CircuitBreaker.Strategy c) {
-        return new CommandContext(this.scheduledExecutorService, this.allowedThreads, c, this.cache, this.collapser);
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, c, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
+    }
+
+    /**
+     * Replaces the default policy, keeping the max concurrent requests of the context (see of(n)) unless p sets it.
+     */
+    public CommandContext withPolicy(CommandPolicy p) {
+        return new CommandContext(this.scheduledExecutorService, this.timer, inheritLimit(p), this.policies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
+    }
+
+    public CommandContext withPolicy(String commandName, CommandPolicy p) {
+        Map<String, CommandPolicy> newPolicies = new HashMap<String, CommandPolicy>(this.policies);
+        newPolicies.put(commandName, p);
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, newPolicies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, this.blockingExecutor, this.shared);
+    }
+
+    /**
+     * Publishes the metrics of every command each interval, until the context is shut down.
+     */
+    public CommandContext withMetricsPublisher(MetricsPublisher p, Duration interval) {
+        CommandContext context = new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, this.strategy, this.cache, this.collapser, Option.apply(p), interval, this.events, this.blockingExecutor, this.shared);
+        context.schedulePublication();
+        return context;
+    }
+
+    // a single publication for a context and the ones derived from it, they share their metrics
+    private void schedulePublication() {
+        long interval = Math.max(1L, publishInterval.toMillis());
+        ScheduledFuture<?> task = scheduledExecutorService.scheduleAtFixedRate(this::publishMetrics, interval, interval, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = shared.publication.getAndSet(task);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Publishes a completion event of every execution in the stream, see CommandEventAggregator to consume it.
+     */
+    public CommandContext withEventStream(CommandEventStream stream) {
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, Option.apply(stream), this.blockingExecutor, this.shared);
+    }
+
+    /**
+     * Runs the commands (Command.runAsync and the blocking Command.run) on the given executor, timeouts, retries and
+     * callbacks stay on the executor of the context. The executor is shut down with the context.
+     */
+    public CommandContext withBlockingExecutor(ExecutorService ec) {
+        return new CommandContext(this.scheduledExecutorService, this.timer, this.defaultPolicy, this.policies, this.strategy, this.cache, this.collapser, this.publisher, this.publishInterval, this.events, Option.apply(ec), this.shared);
     }
 
-    CircuitBreaker breaker(String key) {
+    /**
+     * Runs each command on its own virtual thread, so blocking commands are only limited by the max concurrent requests
+     * of their policy, not by the size of a pool.
+     *
+     * @throws UnsupportedOperationException if the JVM has no virtual threads (before Java 21)
+     */
+    public CommandContext withVirtualThreads() {
+        return withBlockingExecutor(newVirtualThreadPerTaskExecutor());
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // through reflection as the library still targets Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
+    public void updatePolicy(CommandPolicy p) {
+        this.defaultPolicy = inheritLimit(p);
+    }
+
+    private CommandPolicy inheritLimit(CommandPolicy p) {
+        if (!p.hasMaxConcurrentRequests()) {
+            return p.withMaxConcurrentRequests(defaultPolicy.maxConcurrentRequests);
+        }
+        return p;
+    }
+
+    public void updatePolicy(String commandName, CommandPolicy p) {
+        this.policies.put(commandName, p);
+    }
+
+    public void removePolicy(String commandName) {
+        this.policies.remove(commandName);
+    }
+
+    public CommandPolicy policy() {
+        return defaultPolicy;
+    }
+
+    CommandPolicy policy(Command<?> command) {
+        CommandPolicy p = policies.get(command.name());
+        if (p != null) {
+            return p;
+        }
+        p = command.policy();
+        if (p != null) {
+            return p;
+        }
+        return defaultPolicy;
+    }
+
+    CircuitBreaker breaker(String key, CommandPolicy policy) {
         if (strategy == CircuitBreaker.Strategy.UNIQUE_PER_CONTEXT) {
             key = DEFAULT_BREAKER;
+            policy = defaultPolicy;
         }
-        if (!breakers.containsKey(key)) {
-            breakers.putIfAbsent(key, new CircuitBreaker());
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breakers.putIfAbsent(key, new CircuitBreaker(policy));
+            breaker = breakers.get(key);
         }
-        return breakers.get(key);
+        breaker.update(policy);
+        return breaker;
     }
 
-    public <T> Future<T> execute(final Command<T> command) {
+    /**
+     * The isolation settings of a command group. A command alone in its group uses its own policy,
+     * a group shared by several commands uses the policy registered under the group name so the
+     * limit doesn't depend on which command of the group ran last.
+     */
+    CommandPolicy groupPolicy(Command<?> command) {
+        String group = command.group();
+        if (group.equals(command.name())) {
+            return policy(command);
+        }
+        CommandPolicy p = policies.get(group);
+        if (p != null) {
+            return p;
+        }
+        return defaultPolicy;
+    }
+
+    Bulkhead bulkhead(Command<?> command) {
+        return bulkhead(command.group(), groupPolicy(command));
+    }
+
+    Bulkhead bulkhead(String group, CommandPolicy policy) {
+        Bulkhead bulkhead = bulkheads.get(group);
+        if (bulkhead == null) {
+            bulkheads.putIfAbsent(group, new Bulkhead(policy));
+            bulkhead = bulkheads.get(group);
+        }
+        bulkhead.update(policy);
+        return bulkhead;
+    }
+
+    public CommandMetrics metrics(String commandName) {
+        CommandMetrics m = metrics.get(commandName);
+        if (m == null) {
+            metrics.putIfAbsent(commandName, new CommandMetrics(commandName, LATENCY_WINDOW));
+            m = metrics.get(commandName);
+        }
+        return m;
+    }
+
+    public Collection<CommandMetrics> metrics() {
+        return Collections.unmodifiableCollection(metrics.values());
+    }
+
+    private void publishMetrics() {
+        for (MetricsPublisher p : publisher) {
+            for (CommandMetrics m : metrics.values()) {
+                try {
+                    p.publish(m);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void emit(String name, CommandEventStream.Outcome outcome, long latencyMillis, int flags) {
+        if (events.isDefined()) {
+            events.get().publish(name, outcome, latencyMillis, flags);
+        }
+    }
+
+    // a cached failure, including the one of an execution that fell back, falls back for each caller
+    private <T> Future<T> cached(final Command<T> command, final Future<T> future) {
+        final long start = System.currentTimeMillis();
+        final Promise<T> promise = new Promise<T>();
+        future.andThen(ttry -> {
+            long latency = System.currentTimeMillis() - start;
+            if (ttry.isSuccess()) {
+                emit(command.name(), CommandEventStream.Outcome.SUCCESS, latency, CommandEventStream.FROM_CACHE);
+                promise.trySuccess(ttry.asSuccess().getOrElse(null));
+            }
+            for (Throwable t : ttry.asFailure()) {
+                fallback(command, promise, t, CommandEventStream.Outcome.FAILURE, latency, CommandEventStream.FROM_CACHE);
+            }
+        });
+        return promise.future();
+    }
+
+    // the event of a call served by the execution of another one is published once that execution completes
+    private <T> Future<T> shared(final Command<T> command, final Future<T> future, final int flag) {
+        if (!events.isDefined()) {
+            return future;
+        }
+        // the caller gets the result once the event is published
         final long start = System.currentTimeMillis();
         final Promise<T> promise = new Promise<T>();
-        final Future<T> finalFuture = promise.future().andThen(ttry -> counter.decrementAndGet(), scheduledExecutorService);
+        future.andThen(ttry -> {
+            emit(command.name(), ttry.isSuccess() ? CommandEventStream.Outcome.SUCCESS : CommandEventStream.Outcome.FAILURE, System.currentTimeMillis() - start, flag);
+            complete(promise, ttry);
+        });
+        return promise.future();
+    }
+
+    private static <T> void complete(Promise<T> promise, Try<T> ttry) {
+        if (ttry.isSuccess()) {
+            promise.trySuccess(ttry.asSuccess().getOrElse(null));
+        }
+        for (Throwable t : ttry.asFailure()) {
+            promise.tryFailure(t);
+        }
+    }
+
+    LatencyHistogram latency(String name) {
+        LatencyHistogram latency = latencies.get(name);
+        if (latency == null) {
+            latencies.putIfAbsent(name, new LatencyHistogram(LATENCY_WINDOW));
+            latency = latencies.get(name);
+        }
+        return latency;
+    }
+
+    // taken from the policy of the first execution of the command
+    RequestBudget retryBudget(String name, CommandPolicy policy) {
+        return budget(retryBudgets, name, policy.retryBudgetRatio, policy.minRetriesPerSecond, RETRY_BUDGET_TTL);
+    }
+
+    // a budget follows the policy of the command, a new one is started when its settings change
+    private static RequestBudget budget(ConcurrentHashMap<String, RequestBudget> budgets, String name, double ratio, int minPerSecond, Duration ttl) {
+        RequestBudget budget = budgets.get(name);
+        while (budget == null || !budget.hasSettings(ratio, minPerSecond)) {
+            RequestBudget fresh = new RequestBudget(ratio, minPerSecond, ttl);
+            if (budget == null) {
+                budgets.putIfAbsent(name, fresh);
+            } else {
+                budgets.replace(name, budget, fresh);
+            }
+            budget = budgets.get(name);
+        }
+        return budget;
+    }
+
+    RequestBudget hedgeBudget(String name, HedgePolicy hedge) {
+        return budget(hedgeBudgets, name, hedge.budgetRatio, 0, LATENCY_WINDOW);
+    }
+
+    /**
+     * Executes the command, within the deadline of the calling command if any (see Deadline).
+     */
+    public <T> Future<T> execute(final Command<T> command) {
+        return execute(command, Deadline.current());
+    }
+
+    /**
+     * Executes the command within the given deadline of the calling command, when it is called from a thread that
+     * doesn't know it (a callback run on another executor for instance).
+     */
+    public <T> Future<T> execute(final Command<T> command, final Deadline parent) {
+        return execute(command, Option.apply(parent));
+    }
+
+    <T> Future<T> execute(final Command<T> command, final Option<Deadline> parent) {
         String cacheKey = command.cacheKey();
         if (cacheKey != null && cache.isDefined()) {
-            Object o = cache.get().get(cacheKey);
+            // a stale entry can be refreshed in the background, the refresh itself doesn't go through the cache,
+            // isn't bound to the deadline of the caller and fails instead of falling back
+            Object o = cache.get().get(cacheKey, () -> execute(new RefreshCommand<T>(command), null, Option.<Deadline>none()));
             if (o != null) {
-                return (Future<T>) o;
+                metrics(command.name()).markCacheHit();
+                return cached(command, (Future<T>) o);
             }
         }
-        final CircuitBreaker breaker = breaker(command.name());
+        return execute(command, cacheKey, parent);
+    }
+
+    private <T> Future<T> execute(final Command<T> command, final String cacheKey, final Option<Deadline> parent) {
+        final long start = System.currentTimeMillis();
+        final Promise<T> promise = new Promise<T>();
+        final Future<T> finalFuture = promise.future();
+        if (parent.isDefined() && parent.get().isExpired()) {
+            // the caller has already given up
+            metrics(command.name()).markDeadlineExceeded();
+            fallback(command, promise, new TimeoutException("Deadline of the calling command exceeded"), CommandEventStream.Outcome.DEADLINE_EXCEEDED, 0L);
+            return finalFuture;
+        }
+        final CommandPolicy policy = policy(command);
+        final CircuitBreaker breaker = breaker(command.name(), policy);
         if (!breaker.allowRequest()) {
-            try {
-                T fValue = command.fallback();
-                if (fValue == null) {
-                    return Future.failed(new CircuitOpenException("The circuit is open"));
-                } else {
-                    return Future.successful(fValue);
-                }
-            } catch (Throwable t) {
-                return Future.failed(t);
-            }
+            metrics(command.name()).markShortCircuited();
+            fallback(command, promise, new CircuitOpenException("The circuit is open"), CommandEventStream.Outcome.SHORT_CIRCUITED, 0L);
+            return finalFuture;
         }
-        if (allowedThreads <= counter.get()) {
-            try {
-                T fValue = command.fallback();
-                if (fValue == null) {
-                    return Future.failed(new TooManyConcurrentRequestsException("Max allowed request is " + allowedThreads));
-                } else {
-                    return Future.successful(fValue);
-                }
-            } catch (Throwable t) {
-                return Future.failed(t);
-            }
+        final Bulkhead bulkhead = bulkhead(command);
+        if (bulkhead.isSaturated()) {
+            breaker.markRejection();
+            metrics(command.name()).markRejected();
+            fallback(command, promise, new TooManyConcurrentRequestsException("Max allowed request is " + bulkhead.maxConcurrentRequests()), CommandEventStream.Outcome.REJECTED, 0L);
+            return finalFuture;
         }
         if (cacheKey != null && cache.isDefined()) {
-            cache.get().put(cacheKey, finalFuture);
+            // only one execution in flight per cache key, late comers get the registered one
+            final Promise<T> entry = new Promise<T>();
+            Object existing = cache.get().putIfAbsent(cacheKey, entry.future());
+            if (existing != null) {
+                metrics(command.name()).markCacheHit();
+                return cached(command, (Future<T>) existing);
+            }
+            cacheEntries.put(finalFuture, entry);
+            finalFuture.andThen(ttry -> {
+                cacheEntries.remove(finalFuture);
+                complete(entry, ttry);
+            });
         }
         if (collapser.isDefined()) {
-            Future<T> collapsed = collapser.get().add(command, promise, finalFuture, this, start);
+            Future<T> collapsed = collapser.get().add(command, promise, finalFuture, this, start, parent);
             if (collapsed == null) {
-                executeRequest(command, promise, start);
+                executeRequest(command, promise, start, parent);
             } else {
+                if (collapsed != finalFuture) {
+                    metrics(command.name()).markCollapsed();
+                    // served by another request, a cache entry registered above completes with the one of that request
+                    Promise<T> entry = (Promise<T>) cacheEntries.get(collapsed);
+                    (entry == null ? collapsed : entry.future()).andThen(ttry -> complete(promise, ttry));
+                    return shared(command, collapsed, CommandEventStream.COLLAPSED);
+                }
                 return collapsed;
             }
         } else {
-            executeRequest(command, promise, start);
+            executeRequest(command, promise, start, parent);
         }
         return finalFuture;
     }
 
-    <T> void executeRequest(final Command<T> command, final Promise<T> promise, final long start) {
-        final CircuitBreaker breaker = breaker(command.name());
-        counter.incrementAndGet();
-        int retry = command.retry();
-        if (retry == 0) retry = 1;
-        Future<T> fu = Future.retry(retry, command.exponentialBackoff(), () -> command.runAsync(scheduledExecutorService), scheduledExecutorService);
-        fu.andThen(tTry -> {
-            Duration duration = new Duration((System.currentTimeMillis() - start), TimeUnit.MILLISECONDS);
+    <T> void executeRequest(final Command<T> command, final Promise<T> promise, final long start, final Option<Deadline> parent) {
+        final CommandPolicy policy = policy(command);
+        final CircuitBreaker breaker = breaker(command.name(), policy);
+        final Bulkhead bulkhead = bulkhead(command);
+        bulkhead.submit(() -> {
+            promise.future().andThen(ttry -> bulkhead.release());
+            runRequest(command, promise, start, breaker, bulkhead, parent);
+        }, t -> {
+            breaker.markRejection();
+            metrics(command.name()).markRejected();
+            fallback(command, promise, t, CommandEventStream.Outcome.REJECTED, System.currentTimeMillis() - start);
+        }, scheduledExecutorService, timer);
+    }
+
+    private <T> void runRequest(final Command<T> command, final Promise<T> promise, final long start, final CircuitBreaker breaker, final Bulkhead bulkhead, final Option<Deadline> parent) {
+        final Deadline own = Deadline.after(command.timeout());
+        final Deadline deadline = own.earliest(parent);
+        if (deadline.isExpired()) {
+            // spent waiting in the bulkhead queue, not a failure of the command
+            metrics(command.name()).markDeadlineExceeded();
+            fallback(command, promise, new TimeoutException("Deadline of the calling command exceeded"), CommandEventStream.Outcome.DEADLINE_EXCEEDED, System.currentTimeMillis() - start);
+            return;
+        }
+        final Duration timeoutDuration = deadline == own ? command.timeout() : new Duration(TimeUnit.NANOSECONDS.toMillis(deadline.remainingNanos()), TimeUnit.MILLISECONDS);
+        final CommandMetrics commandMetrics = metrics(command.name());
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final HashedWheelTimer.Timeout timeout = timer.newTimeout(() -> scheduledExecutorService.execute(() -> {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            breaker.markTimeout(new Duration(elapsed, TimeUnit.MILLISECONDS));
+            commandMetrics.markTimeout();
+            fallback(command, promise, new TimeoutException("Request timeout (" + timeoutDuration.toHumanReadable() + ")"), CommandEventStream.Outcome.TIMEOUT, elapsed);
+        }), timeoutDuration);
+        promise.future().andThen(ttry -> timeout.cancel());
+        final CommandPolicy policy = policy(command);
+        final RequestBudget retryBudget = retryBudget(command.name(), policy);
+        final Supplier<Future<T>> attempt = () -> {
+            Promise<T> attemptPromise = new Promise<T>();
+            attempt(command, policy, retryBudget, Math.max(1, command.retry()) - 1, 0L, done, deadline, attemptPromise);
+            return attemptPromise.future();
+        };
+        final HedgePolicy hedge = command.hedge();
+        Future<T> fu = hedge == null ? launch(attempt) : hedged(command, hedge, bulkhead, attempt);
+        fu.andThen(ttry -> {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            Duration duration = new Duration(elapsed, TimeUnit.MILLISECONDS);
+            Try<T> tTry = ttry;
+            if (tTry.isSuccess() && tTry.asSuccess().isEmpty()) {
+                // a null result would leave the caller waiting until the timeout
+                tTry = Try.failure(new NullPointerException("Command " + command.name() + " returned null"));
+            }
             for(Throwable t : tTry.asFailure()) {
                 breaker.markFailure(duration);
-                try {
-                    T fValue = command.fallback();
-                    if (fValue == null) {
-                        promise.tryFailure(t);
-                    } else {
-                        promise.trySuccess(fValue);
-                    }
-                } catch (Throwable tt) {
-                    promise.tryFailure(tt);
-                }
+                commandMetrics.markFailure(elapsed);
+                fallback(command, promise, t, CommandEventStream.Outcome.FAILURE, elapsed);
             }
             for (T value : tTry.asSuccess()) {
                 breaker.markSuccess(duration);
+                commandMetrics.markSuccess(elapsed);
+                // retries and hedges are a fraction of the successful calls, only the reserve is left when the backend is down
+                retryBudget.deposit();
+                if (hedge != null) {
+                    hedgeBudget(command.name(), hedge).deposit();
+                }
+                emit(command.name(), CommandEventStream.Outcome.SUCCESS, elapsed, 0);
                 promise.trySuccess(value);
             }
         });
-        Future.timeout(null, command.timeout(), scheduledExecutorService).andThen(ttry -> {
-            //breaker.markFailure(command.timeout());
-            try {
-                T fValue = command.fallback();
-                if (fValue == null) {
-                    promise.tryFailure(new TimeoutException("Request timeout (" + command.timeout().toHumanReadable() + ")"));
-                } else {
-                    promise.trySuccess(fValue);
+    }
+
+    /**
+     * Runs the command, and retries it on retryable failures as long as the retry budget of the command allows it.
+     * Stops retrying once the request is done (timed out) or when the next retry would start after the deadline.
+     */
+    private <T> void attempt(final Command<T> command, final CommandPolicy policy, final RequestBudget budget, final int retries, final long lastDelay, final AtomicBoolean done, final Deadline deadline, final Promise<T> promise) {
+        if (done.get()) {
+            // a retry scheduled before the request timed out, or before the other hedged attempt won
+            promise.tryFailure(new CancellationException("Request of " + command.name() + " already done"));
+            return;
+        }
+        Future<T> fu;
+        try {
+            // commands executed from runAsync, from run with the default runAsync, or from tasks and callbacks
+            // run on the executor given to runAsync, see the deadline
+            fu = Deadline.within(Option.apply(deadline), () -> command.runAsync(new DeadlineScheduledExecutor(commandExecutor, deadline)));
+        } catch (Throwable t) {
+            fu = Future.failed(t);
+        }
+        fu.andThen(ttry -> {
+            if (ttry.isSuccess()) {
+                promise.trySuccess(ttry.asSuccess().getOrElse(null));
+                return;
+            }
+            for (Throwable t : ttry.asFailure()) {
+                if (retries <= 0 || done.get() || !command.isRetryable(t) || !budget.tryWithdraw()) {
+                    promise.tryFailure(t);
+                    return;
+                }
+                final long delay = command.exponentialBackoff() ? backoff(policy, lastDelay) : 0L;
+                if (TimeUnit.MILLISECONDS.toNanos(delay) >= deadline.remainingNanos()) {
+                    promise.tryFailure(t);
+                    return;
+                }
+                Runnable retry = () -> attempt(command, policy, budget, retries - 1, delay, done, deadline, promise);
+                try {
+                    if (delay == 0L) {
+                        scheduledExecutorService.execute(retry);
+                    } else {
+                        timer.newTimeout(() -> scheduledExecutorService.execute(retry), new Duration(delay, TimeUnit.MILLISECONDS));
+                    }
+                } catch (Throwable e) {
+                    promise.tryFailure(t);
                 }
-            } catch (Throwable t) {
-                promise.tryFailure(t);
             }
         });
     }
 
+    // decorrelated jitter, random between base and 3 times the last delay, capped
+    private static long backoff(CommandPolicy policy, long lastDelay) {
+        long base = Math.max(1L, policy.retryBackoff.toMillis());
+        long upper = Math.max(base, lastDelay * 3L);
+        long delay = upper > base ? ThreadLocalRandom.current().nextLong(base, upper + 1L) : base;
+        return Math.min(policy.maxRetryBackoff.toMillis(), delay);
+    }
+
+    /**
+     * Runs attempt, and once more if it takes longer than the hedge percentile of the recent latencies of the command.
+     * The first success wins. A running Future can't be cancelled, so the loser only stops before its next retry,
+     * and the spare permit of the hedge is kept until both attempts are done.
+     */
+    private <T> Future<T> hedged(final Command<T> command, final HedgePolicy hedge, final Bulkhead bulkhead, final Supplier<Future<T>> attempt) {
+        final LatencyHistogram latency = latency(command.name());
+        final RequestBudget budget = hedgeBudget(command.name(), hedge);
+        final Promise<T> first = new Promise<T>();
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final AtomicInteger running = new AtomicInteger(1);
+        // attempts not done yet, the last one gives the spare permit back
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicBoolean spare = new AtomicBoolean(false);
+        final Function<Long, Consumer<Try<T>>> completion = attemptStart -> ttry -> {
+            if (pending.decrementAndGet() == 0 && spare.compareAndSet(true, false)) {
+                bulkhead.release();
+            }
+            // failures count too, or the percentile would only see the fast calls while the backend struggles
+            if (!(ttry.isFailure() && ttry.asFailure().get() instanceof CancellationException)) {
+                latency.record(System.nanoTime() - attemptStart, TimeUnit.NANOSECONDS);
+            }
+            if (ttry.isSuccess()) {
+                settled.set(true);
+                first.trySuccess(ttry.asSuccess().getOrElse(null));
+            }
+            for (Throwable t : ttry.asFailure()) {
+                if (running.decrementAndGet() == 0) {
+                    settled.set(true);
+                    first.tryFailure(t);
+                }
+            }
+        };
+        long percentile = latency.percentile(hedge.percentile, hedge.minSamples, TimeUnit.NANOSECONDS);
+        if (percentile >= 0L) {
+            long delay = Math.max(hedge.minDelay.toNanos(), percentile);
+            final HashedWheelTimer.Timeout hedgeTimeout = timer.newTimeout(() -> scheduledExecutorService.execute(() -> {
+                // the hedged attempt needs a spare permit of the bulkhead, like any other execution of the group
+                pending.incrementAndGet();
+                if (settled.get() || !budget.tryWithdraw() || !bulkhead.tryAcquireSpare()) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                spare.set(true);
+                running.incrementAndGet();
+                launch(attempt).andThen(completion.apply(System.nanoTime()));
+            }), new Duration(delay, TimeUnit.NANOSECONDS));
+            first.future().andThen(ttry -> hedgeTimeout.cancel());
+        }
+        launch(attempt).andThen(completion.apply(System.nanoTime()));
+        return first.future();
+    }
+
+    private static <T> Future<T> launch(Supplier<Future<T>> attempt) {
+        try {
+            return attempt.get();
+        } catch (Throwable t) {
+            return Future.failed(t);
+        }
+    }
+
+    /**
+     * @return true if the promise has been completed with the fallback value of the command
+     */
+    <T> boolean fallback(Command<T> command, Promise<T> promise, Throwable cause) {
+        return fallback(command, promise, cause, null, 0L);
+    }
+
+    private <T> boolean fallback(Command<T> command, Promise<T> promise, Throwable cause, CommandEventStream.Outcome outcome, long latencyMillis) {
+        return fallback(command, promise, cause, outcome, latencyMillis, 0);
+    }
+
+    // the event is published before the promise is completed, so it is there for whoever waits for the result
+    private <T> boolean fallback(Command<T> command, Promise<T> promise, Throwable cause, CommandEventStream.Outcome outcome, long latencyMillis, int flags) {
+        T fValue = null;
+        Throwable failure = cause;
+        try {
+            fValue = command.fallback();
+            if (fValue != null) {
+                metrics(command.name()).markFallbackSuccess();
+            }
+        } catch (Throwable t) {
+            metrics(command.name()).markFallbackFailure();
+            failure = t;
+        }
+        if (outcome != null) {
+            emit(command.name(), outcome, latencyMillis, fValue == null ? flags : flags | CommandEventStream.FALLBACK);
+        }
+        if (fValue == null) {
+            promise.tryFailure(failure);
+            return false;
+        }
+        // the fallback value is only for this caller, the cache gets the failure and its TTL
+        Promise<?> entry = cacheEntries.remove(promise.future());
+        if (entry != null) {
+            entry.tryFailure(cause);
+        }
+        promise.trySuccess(fValue);
+        return true;
+    }
+
     public <T> T get(Command<T> command) {
         return Await.result(execute(command), Command.FOREVER);
     }
@@ -175,7 +693,16 @@ public class CommandContext {
     }
 
     public void shutdown() {
+        ScheduledFuture<?> publication = shared.publication.getAndSet(null);
+        if (publication != null) {
+            publication.cancel(false);
+        }
+        publishMetrics();
         scheduledExecutorService.shutdown();
+        if (blockingExecutor.isDefined()) {
+            blockingExecutor.get().shutdown();
+        }
+        timer.stop();
         if (collapser.isDefined()) {
             collapser.get().stop();
         }
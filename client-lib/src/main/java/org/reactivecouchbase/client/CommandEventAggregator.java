@@ -0,0 +1,209 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains a CommandEventStream off the request threads and keeps, per command name, rolling windows of the events
+ * (counts per outcome and flag, latencies), for dashboards.
+ * Only the draining thread writes the windows, readers get immutable snapshots.
+ */
+public class CommandEventAggregator implements CommandEventStream.Handler {
+
+    private static final int OUTCOMES = CommandEventStream.Outcome.values().length;
+
+    public static class Snapshot {
+
+        public final String name;
+        public final long[] outcomes;
+        public final long fromCache;
+        public final long collapsed;
+        public final long fallbacks;
+        public final long totalLatencyMillis;
+        public final long maxLatencyMillis;
+
+        Snapshot(String name, long[] outcomes, long fromCache, long collapsed, long fallbacks, long totalLatencyMillis, long maxLatencyMillis) {
+            this.name = name;
+            this.outcomes = outcomes;
+            this.fromCache = fromCache;
+            this.collapsed = collapsed;
+            this.fallbacks = fallbacks;
+            this.totalLatencyMillis = totalLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        public long count(CommandEventStream.Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+
+        public long total() {
+            long total = 0L;
+            for (long count : outcomes) {
+                total += count;
+            }
+            return total;
+        }
+
+        public double errorPercentage() {
+            long total = total();
+            if (total == 0L) {
+                return 0.0;
+            }
+            return ((total - count(CommandEventStream.Outcome.SUCCESS)) * 100.0) / total;
+        }
+
+        public double meanLatencyMillis() {
+            long total = total();
+            if (total == 0L) {
+                return 0.0;
+            }
+            return ((double) totalLatencyMillis) / total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Snapshot{name='").append(name).append('\'');
+            for (CommandEventStream.Outcome outcome : CommandEventStream.Outcome.values()) {
+                builder.append(", ").append(outcome.name().toLowerCase()).append('=').append(count(outcome));
+            }
+            return builder
+                    .append(", fromCache=").append(fromCache)
+                    .append(", collapsed=").append(collapsed)
+                    .append(", fallbacks=").append(fallbacks)
+                    .append(", meanLatencyMillis=").append(meanLatencyMillis())
+                    .append(", maxLatencyMillis=").append(maxLatencyMillis)
+                    .append('}').toString();
+        }
+    }
+
+    private static class Bucket {
+        private long period = -1L;
+        private final long[] outcomes = new long[OUTCOMES];
+        private long fromCache;
+        private long collapsed;
+        private long fallbacks;
+        private long totalLatencyMillis;
+        private long maxLatencyMillis;
+
+        private void reset(long newPeriod) {
+            period = newPeriod;
+            for (int i = 0; i < OUTCOMES; i++) {
+                outcomes[i] = 0L;
+            }
+            fromCache = 0L;
+            collapsed = 0L;
+            fallbacks = 0L;
+            totalLatencyMillis = 0L;
+            maxLatencyMillis = 0L;
+        }
+    }
+
+    private final CommandEventStream stream;
+    private final long bucketMillis;
+    private final int numberOfBuckets;
+    private final Map<String, Bucket[]> windows = new HashMap<String, Bucket[]>();
+    private volatile boolean stopped = false;
+
+    public CommandEventAggregator(CommandEventStream stream, Duration window) {
+        this(stream, window, CircuitBreakerHealth.DEFAULT_BUCKETS);
+    }
+
+    public CommandEventAggregator(CommandEventStream stream, Duration window, int numberOfBuckets) {
+        this.stream = stream;
+        this.numberOfBuckets = numberOfBuckets;
+        this.bucketMillis = Math.max(1L, window.toMillis() / numberOfBuckets);
+    }
+
+    /**
+     * Drains the stream every interval on the given executor, until stop().
+     */
+    public CommandEventAggregator start(ScheduledExecutorService ec, Duration interval) {
+        try {
+            ec.schedule(() -> {
+                if (!stopped) {
+                    try {
+                        drain();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                    start(ec, interval);
+                }
+            }, interval.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            stopped = true;
+        }
+        return this;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public synchronized int drain() {
+        return stream.drain(this);
+    }
+
+    @Override
+    public void onEvent(String name, CommandEventStream.Outcome outcome, long latencyMillis, int flags) {
+        Bucket[] buckets = windows.get(name);
+        if (buckets == null) {
+            buckets = new Bucket[numberOfBuckets];
+            for (int i = 0; i < numberOfBuckets; i++) {
+                buckets[i] = new Bucket();
+            }
+            windows.put(name, buckets);
+        }
+        long period = System.currentTimeMillis() / bucketMillis;
+        Bucket bucket = buckets[(int) (period % numberOfBuckets)];
+        if (bucket.period != period) {
+            bucket.reset(period);
+        }
+        bucket.outcomes[outcome.ordinal()]++;
+        if ((flags & CommandEventStream.FROM_CACHE) != 0) {
+            bucket.fromCache++;
+        }
+        if ((flags & CommandEventStream.COLLAPSED) != 0) {
+            bucket.collapsed++;
+        }
+        if ((flags & CommandEventStream.FALLBACK) != 0) {
+            bucket.fallbacks++;
+        }
+        bucket.totalLatencyMillis += latencyMillis;
+        bucket.maxLatencyMillis = Math.max(bucket.maxLatencyMillis, latencyMillis);
+    }
+
+    public synchronized Map<String, Snapshot> snapshots() {
+        Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+        for (String name : windows.keySet()) {
+            snapshots.put(name, snapshot(name));
+        }
+        return snapshots;
+    }
+
+    public synchronized Snapshot snapshot(String name) {
+        long[] outcomes = new long[OUTCOMES];
+        long fromCache = 0L, collapsed = 0L, fallbacks = 0L, totalLatency = 0L, maxLatency = 0L;
+        Bucket[] buckets = windows.get(name);
+        if (buckets != null) {
+            long oldest = (System.currentTimeMillis() / bucketMillis) - numberOfBuckets;
+            for (Bucket bucket : buckets) {
+                if (bucket.period > oldest) {
+                    for (int i = 0; i < OUTCOMES; i++) {
+                        outcomes[i] += bucket.outcomes[i];
+                    }
+                    fromCache += bucket.fromCache;
+                    collapsed += bucket.collapsed;
+                    fallbacks += bucket.fallbacks;
+                    totalLatency += bucket.totalLatencyMillis;
+                    maxLatency = Math.max(maxLatency, bucket.maxLatencyMillis);
+                }
+            }
+        }
+        return new Snapshot(name, outcomes, fromCache, collapsed, fallbacks, totalLatency, maxLatency);
+    }
+}
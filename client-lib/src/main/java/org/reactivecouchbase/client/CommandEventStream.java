@@ -0,0 +1,153 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pre-allocated ring buffer of command completion events, written by the request threads and drained by a single
+ * consumer (see CommandEventAggregator).
+ *
+ * Producers claim a sequence with an atomic increment and write the fields of the slot in place, each slot being
+ * guarded by a seqlock : odd while written, even once published, so the consumer never reads a half written event.
+ * By default (lossy) producers never wait, when the consumer lags by more than the capacity, old events are overwritten
+ * and counted as dropped. A blocking stream parks its producers until the consumer frees a slot, at most for maxWait
+ * before dropping like a lossy one, so a stopped consumer can't hang the request threads.
+ */
+public class CommandEventStream {
+
+    public enum Outcome {
+        SUCCESS, FAILURE, TIMEOUT, SHORT_CIRCUITED, REJECTED, DEADLINE_EXCEEDED
+    }
+
+    public static final int FROM_CACHE = 1;
+    public static final int COLLAPSED = 2;
+    public static final int FALLBACK = 4;
+
+    public interface Handler {
+        void onEvent(String name, Outcome outcome, long latencyMillis, int flags);
+    }
+
+    private static final class Slot {
+        // 2n + 1 while event n is written, 2n + 2 once published
+        private final AtomicLong state = new AtomicLong(0L);
+        // volatile, so the consumer reads them before it checks the state again (a plain read could be reordered)
+        private volatile String name;
+        private volatile Outcome outcome;
+        private volatile long latencyMillis;
+        private volatile int flags;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final long maxWaitNanos;
+    private final AtomicLong head = new AtomicLong(0L);
+    private final LongAdder dropped = new LongAdder();
+    private volatile long cursor = 0L;
+
+    private CommandEventStream(int capacity, long maxWaitNanos) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public static CommandEventStream of(int capacity) {
+        return lossy(capacity);
+    }
+
+    public static CommandEventStream lossy(int capacity) {
+        return new CommandEventStream(capacity, 0L);
+    }
+
+    public static CommandEventStream blocking(int capacity, Duration maxWait) {
+        return new CommandEventStream(capacity, Math.max(1L, maxWait.toNanos()));
+    }
+
+    public void publish(String name, Outcome outcome, long latencyMillis, int flags) {
+        long n = head.getAndIncrement();
+        if (maxWaitNanos > 0L && n - cursor >= slots.length) {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            while (n - cursor >= slots.length && System.nanoTime() - deadline < 0L) {
+                LockSupport.parkNanos(1000L);
+            }
+        }
+        Slot slot = slots[(int) (n & mask)];
+        while (true) {
+            long state = slot.state.get();
+            if (state >= 2L * n + 2L) {
+                // lapped by a newer event, the consumer counts this one as dropped
+                return;
+            }
+            if ((state & 1L) == 0L && slot.state.compareAndSet(state, 2L * n + 1L)) {
+                break;
+            }
+            // an older event is being written in this slot, it only takes a few stores
+            Thread.yield();
+        }
+        slot.name = name;
+        slot.outcome = outcome;
+        slot.latencyMillis = latencyMillis;
+        slot.flags = flags;
+        slot.state.set(2L * n + 2L);
+    }
+
+    /**
+     * Hands the published events to the handler, in order, until the first one not published yet.
+     * Must be called by one consumer at a time.
+     *
+     * @return the number of events handled
+     */
+    public synchronized int drain(Handler handler) {
+        long n = cursor;
+        int handled = 0;
+        while (true) {
+            Slot slot = slots[(int) (n & mask)];
+            long state = slot.state.get();
+            if (state > 2L * n + 2L) {
+                // overwritten, restart from the oldest event still in the buffer
+                long oldest = Math.max(n + 1L, head.get() - slots.length);
+                dropped.add(oldest - n);
+                n = oldest;
+                continue;
+            }
+            if (state != 2L * n + 2L) {
+                break;
+            }
+            String name = slot.name;
+            Outcome outcome = slot.outcome;
+            long latencyMillis = slot.latencyMillis;
+            int flags = slot.flags;
+            if (slot.state.get() != state) {
+                // overwritten while read
+                continue;
+            }
+            n++;
+            cursor = n;
+            try {
+                handler.onEvent(name, outcome, latencyMillis, flags);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+            handled++;
+        }
+        cursor = n;
+        return handled;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
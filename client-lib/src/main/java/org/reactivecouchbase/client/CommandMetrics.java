@@ -0,0 +1,154 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for every exit path of the executions of a command, and a rolling histogram of their latencies.
+ * Recording is a LongAdder or atomic increment, reading sums the counters, see MetricsPublisher.
+ */
+public class CommandMetrics {
+
+    private final String name;
+    private final LatencyHistogram latency;
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder shortCircuited = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder deadlineExceeded = new LongAdder();
+    private final LongAdder fallbackSuccesses = new LongAdder();
+    private final LongAdder fallbackFailures = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    CommandMetrics(String name, Duration window) {
+        this.name = name;
+        this.latency = new LatencyHistogram(window);
+    }
+
+    void markSuccess(long latencyMillis) {
+        successes.increment();
+        latency.record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void markFailure(long latencyMillis) {
+        failures.increment();
+        latency.record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void markTimeout() {
+        timeouts.increment();
+    }
+
+    void markShortCircuited() {
+        shortCircuited.increment();
+    }
+
+    void markRejected() {
+        rejected.increment();
+    }
+
+    void markDeadlineExceeded() {
+        deadlineExceeded.increment();
+    }
+
+    void markFallbackSuccess() {
+        fallbackSuccesses.increment();
+    }
+
+    void markFallbackFailure() {
+        fallbackFailures.increment();
+    }
+
+    void markCacheHit() {
+        cacheHits.increment();
+    }
+
+    void markCollapsed() {
+        collapsed.increment();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Latencies of the executions that completed, successfully or not, timeouts excluded.
+     */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public long percentile(double percentile, TimeUnit unit) {
+        return latency.percentile(percentile, unit);
+    }
+
+    public long successes() {
+        return successes.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long shortCircuited() {
+        return shortCircuited.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long deadlineExceeded() {
+        return deadlineExceeded.sum();
+    }
+
+    public long fallbackSuccesses() {
+        return fallbackSuccesses.sum();
+    }
+
+    public long fallbackFailures() {
+        return fallbackFailures.sum();
+    }
+
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long collapsed() {
+        return collapsed.sum();
+    }
+
+    /**
+     * @return every call of execute for the command, whatever the way it ended
+     */
+    public long requests() {
+        return successes() + failures() + timeouts() + shortCircuited() + rejected() + deadlineExceeded() + cacheHits() + collapsed();
+    }
+
+    @Override
+    public String toString() {
+        return "CommandMetrics{" +
+                "name='" + name + '\'' +
+                ", successes=" + successes() +
+                ", failures=" + failures() +
+                ", timeouts=" + timeouts() +
+                ", shortCircuited=" + shortCircuited() +
+                ", rejected=" + rejected() +
+                ", deadlineExceeded=" + deadlineExceeded() +
+                ", fallbackSuccesses=" + fallbackSuccesses() +
+                ", fallbackFailures=" + fallbackFailures() +
+                ", cacheHits=" + cacheHits() +
+                ", collapsed=" + collapsed() +
+                ", p50=" + percentile(50.0, TimeUnit.MILLISECONDS) + "ms" +
+                ", p99=" + percentile(99.0, TimeUnit.MILLISECONDS) + "ms" +
+                '}';
+    }
+}
@@ -0,0 +1,144 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+public class CommandPolicy {
+
+    private static final CommandPolicy DEFAULT = new CommandPolicy(20, 50.0, Duration.parse("10 sec"), Duration.parse("5 sec"), 1, Integer.MAX_VALUE, 0, Duration.parse("1 sec"), 0.2, 10, Duration.parse("10 millis"), Duration.parse("1 sec"), false);
+
+    public final int requestVolumeThreshold;
+    public final double errorThresholdPercentage;
+    public final Duration metricsWindow;
+    public final Duration sleepWindow;
+    public final int halfOpenMaxProbes;
+    public final int maxConcurrentRequests;
+    public final int maxQueueSize;
+    public final Duration queueTimeout;
+    public final double retryBudgetRatio;
+    public final int minRetriesPerSecond;
+    public final Duration retryBackoff;
+    public final Duration maxRetryBackoff;
+    // whether maxConcurrentRequests was set, the default is left to the context
+    private final boolean limited;
+
+    private CommandPolicy(int requestVolumeThreshold, double errorThresholdPercentage, Duration metricsWindow, Duration sleepWindow, int halfOpenMaxProbes, int maxConcurrentRequests, int maxQueueSize, Duration queueTimeout, double retryBudgetRatio, int minRetriesPerSecond, Duration retryBackoff, Duration maxRetryBackoff, boolean limited) {
+        this.requestVolumeThreshold = requestVolumeThreshold;
+        this.errorThresholdPercentage = errorThresholdPercentage;
+        this.metricsWindow = metricsWindow;
+        this.sleepWindow = sleepWindow;
+        this.halfOpenMaxProbes = halfOpenMaxProbes;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueueSize = maxQueueSize;
+        this.queueTimeout = queueTimeout;
+        this.retryBudgetRatio = retryBudgetRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.retryBackoff = retryBackoff;
+        this.maxRetryBackoff = maxRetryBackoff;
+        this.limited = limited;
+    }
+
+    public static CommandPolicy defaults() {
+        return DEFAULT;
+    }
+
+    boolean hasMaxConcurrentRequests() {
+        return limited;
+    }
+
+    private static void checkPositive(String name, Duration d) {
+        if (d.toMillis() <= 0L) {
+            throw new IllegalArgumentException(name + " must be positive: " + d.toHumanReadable());
+        }
+    }
+
+    public CommandPolicy withRequestVolumeThreshold(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("requestVolumeThreshold must be at least 1: " + n);
+        }
+        return new CommandPolicy(n, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withErrorThresholdPercentage(double p) {
+        if (p <= 0.0 || p > 100.0) {
+            throw new IllegalArgumentException("errorThresholdPercentage must be in ]0, 100]: " + p);
+        }
+        return new CommandPolicy(requestVolumeThreshold, p, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withMetricsWindow(Duration d) {
+        checkPositive("metricsWindow", d);
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, d, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withSleepWindow(Duration d) {
+        checkPositive("sleepWindow", d);
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, d, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withHalfOpenMaxProbes(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("halfOpenMaxProbes must be at least 1: " + n);
+        }
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, n, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withMaxConcurrentRequests(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests can't be negative: " + n);
+        }
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, n, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, true);
+    }
+
+    public CommandPolicy withMaxQueueSize(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("maxQueueSize can't be negative: " + n);
+        }
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, n, queueTimeout, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    public CommandPolicy withQueueTimeout(Duration d) {
+        checkPositive("queueTimeout", d);
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, d, retryBudgetRatio, minRetriesPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    /**
+     * Retries are limited to ratio times the executions of a command over the last 10 seconds, plus minPerSecond
+     * retries per second so rarely executed commands can still retry.
+     */
+    public CommandPolicy withRetryBudget(double ratio, int minPerSecond) {
+        if (ratio < 0.0 || minPerSecond < 0) {
+            throw new IllegalArgumentException("retry budget can't be negative: " + ratio + ", " + minPerSecond);
+        }
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, ratio, minPerSecond, retryBackoff, maxRetryBackoff, limited);
+    }
+
+    /**
+     * Backoff between retries (when Command.exponentialBackoff() is true) uses decorrelated jitter,
+     * each delay is random between base and 3 times the previous one, capped at max.
+     */
+    public CommandPolicy withRetryBackoff(Duration base, Duration max) {
+        checkPositive("retryBackoff", base);
+        if (max.toMillis() < base.toMillis()) {
+            throw new IllegalArgumentException("maxRetryBackoff must be at least retryBackoff: " + max.toHumanReadable());
+        }
+        return new CommandPolicy(requestVolumeThreshold, errorThresholdPercentage, metricsWindow, sleepWindow, halfOpenMaxProbes, maxConcurrentRequests, maxQueueSize, queueTimeout, retryBudgetRatio, minRetriesPerSecond, base, max, limited);
+    }
+
+    @Override
+    public String toString() {
+        return "CommandPolicy{" +
+                "requestVolumeThreshold=" + requestVolumeThreshold +
+                ", errorThresholdPercentage=" + errorThresholdPercentage +
+                ", metricsWindow=" + metricsWindow.toHumanReadable() +
+                ", sleepWindow=" + sleepWindow.toHumanReadable() +
+                ", halfOpenMaxProbes=" + halfOpenMaxProbes +
+                ", maxConcurrentRequests=" + maxConcurrentRequests +
+                ", maxQueueSize=" + maxQueueSize +
+                ", queueTimeout=" + queueTimeout.toHumanReadable() +
+                ", retryBudgetRatio=" + retryBudgetRatio +
+                ", minRetriesPerSecond=" + minRetriesPerSecond +
+                ", retryBackoff=" + retryBackoff.toHumanReadable() +
+                ", maxRetryBackoff=" + maxRetryBackoff.toHumanReadable() +
+                '}';
+    }
+}
@@ -0,0 +1,241 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.functional.Option;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Client routing each call by key on a consistent-hash ring of the matching instances, so a key keeps hitting the same
+ * instance while the topology is stable. With bounded loads, an instance already serving more than loadFactor times the
+ * average number of calls in flight is skipped for the next one on the ring.
+ * The ring is only updated for the instances that were added or removed since the last registry snapshot.
+ */
+public class ConsistentHashClient implements Client {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static class Ring {
+        private final List<ServiceDescriptor> services;
+        private final Set<String> uids;
+        private final long[] hashes;
+        private final ServiceDescriptor[] owners;
+
+        private Ring(List<ServiceDescriptor> services, Set<String> uids, long[] hashes, ServiceDescriptor[] owners) {
+            this.services = services;
+            this.uids = uids;
+            this.hashes = hashes;
+            this.owners = owners;
+        }
+
+        private boolean sameInstances(List<ServiceDescriptor> other) {
+            if (services == other) {
+                return true;
+            }
+            if (uids.size() != other.size()) {
+                return false;
+            }
+            for (ServiceDescriptor desc : other) {
+                if (!uids.contains(desc.uid)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final String name;
+    private final Option<String> version;
+    private final ImmutableList<String> roles;
+    private final ClientRegistry registry;
+    private final int virtualNodes;
+    private final double loadFactor;
+    private final ConcurrentHashMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger totalInFlight = new AtomicInteger(0);
+    private volatile Ring ring = new Ring(ImmutableList.<ServiceDescriptor>of(), new HashSet<String>(), new long[0], new ServiceDescriptor[0]);
+
+    ConsistentHashClient(String name, Option<String> version, ImmutableList<String> roles, ClientRegistry registry, int virtualNodes, double loadFactor) {
+        this.name = name;
+        this.version = version;
+        this.roles = roles;
+        this.registry = registry;
+        this.virtualNodes = virtualNodes;
+        this.loadFactor = loadFactor;
+    }
+
+    public ConsistentHashClient withVirtualNodes(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("virtualNodes must be at least 1: " + n);
+        }
+        return new ConsistentHashClient(name, version, roles, registry, n, loadFactor);
+    }
+
+    public ConsistentHashClient withLoadFactor(double c) {
+        if (!(c >= 1.0)) {
+            throw new IllegalArgumentException("loadFactor must be at least 1: " + c);
+        }
+        return new ConsistentHashClient(name, version, roles, registry, virtualNodes, c);
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+    private Ring ring() {
+        List<ServiceDescriptor> services = registry.services(name, version, roles);
+        Ring current = ring;
+        // some registries build a new list on each lookup, only a change of the instances rebuilds the ring
+        if (current.sameInstances(services)) {
+            return current;
+        }
+        synchronized (this) {
+            current = ring;
+            if (!current.sameInstances(services)) {
+                current = rebuild(current, services);
+                ring = current;
+            }
+            return current;
+        }
+    }
+
+    private Ring rebuild(Ring previous, List<ServiceDescriptor> services) {
+        Set<String> uids = new HashSet<String>();
+        for (ServiceDescriptor desc : services) {
+            uids.add(desc.uid);
+        }
+        Set<String> known = new HashSet<String>();
+        for (ServiceDescriptor desc : previous.services) {
+            known.add(desc.uid);
+            if (!uids.contains(desc.uid)) {
+                inFlight.remove(desc.uid);
+            }
+        }
+        // points of the new instances, sorted
+        Map<Long, ServiceDescriptor> added = new HashMap<Long, ServiceDescriptor>();
+        for (ServiceDescriptor desc : services) {
+            if (!known.contains(desc.uid)) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    long h = hash(desc.uid + "#" + i);
+                    // two points on the same hash, the next free one keeps both
+                    while (added.containsKey(h)) {
+                        h++;
+                    }
+                    added.put(h, desc);
+                }
+            }
+        }
+        long[] addedHashes = new long[added.size()];
+        int a = 0;
+        for (Long h : added.keySet()) {
+            addedHashes[a++] = h;
+        }
+        Arrays.sort(addedHashes);
+        // merge them with the points of the instances still there
+        long[] hashes = new long[previous.hashes.length + addedHashes.length];
+        ServiceDescriptor[] owners = new ServiceDescriptor[hashes.length];
+        int i = 0, j = 0, k = 0;
+        while (i < previous.hashes.length || j < addedHashes.length) {
+            if (i < previous.hashes.length && !uids.contains(previous.owners[i].uid)) {
+                i++;
+            } else if (j >= addedHashes.length || (i < previous.hashes.length && previous.hashes[i] <= addedHashes[j])) {
+                hashes[k] = previous.hashes[i];
+                owners[k++] = previous.owners[i++];
+            } else {
+                hashes[k] = addedHashes[j];
+                owners[k++] = added.get(addedHashes[j++]);
+            }
+        }
+        return new Ring(services, uids, Arrays.copyOf(hashes, k), Arrays.copyOf(owners, k));
+    }
+
+    private AtomicInteger inFlight(ServiceDescriptor desc) {
+        AtomicInteger count = inFlight.get(desc.uid);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger(0);
+            count = inFlight.putIfAbsent(desc.uid, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
+
+    public Option<ServiceDescriptor> service(String key) {
+        return service(hash(key));
+    }
+
+    private Option<ServiceDescriptor> service(long hash) {
+        Ring r = ring();
+        int points = r.hashes.length;
+        if (points == 0) {
+            return Option.none();
+        }
+        int start = Arrays.binarySearch(r.hashes, hash);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int capacity = (int) Math.ceil(loadFactor * (totalInFlight.get() + 1) / r.services.size());
+        for (int n = 0; n < points; n++) {
+            ServiceDescriptor desc = r.owners[(start + n) % points];
+            if (inFlight(desc).get() < capacity) {
+                return Option.apply(desc);
+            }
+        }
+        return Option.apply(r.owners[start % points]);
+    }
+
+    public <T> Future<T> call(String key, final Function<ServiceDescriptor, T> f) {
+        return callM(key, input -> Future.successful(f.apply(input)));
+    }
+
+    public <T> Future<T> callM(String key, final Function<ServiceDescriptor, Future<T>> f) {
+        return callM(hash(key), f);
+    }
+
+    @Override
+    public <T> Future<T> call(final Function<ServiceDescriptor, T> f) {
+        return callM(input -> Future.successful(f.apply(input)));
+    }
+
+    @Override
+    public <T> Future<T> callM(final Function<ServiceDescriptor, Future<T>> f) {
+        // no key, any point of the ring will do
+        return callM(ThreadLocalRandom.current().nextLong(), f);
+    }
+
+    private <T> Future<T> callM(long hash, final Function<ServiceDescriptor, Future<T>> f) {
+        Option<ServiceDescriptor> best = service(hash);
+        if (!best.isDefined()) {
+            return Future.failed(new ServiceDescNotFoundException("Service not found " + name + ", " + version + ", " + roles));
+        }
+        final AtomicInteger count = inFlight(best.get());
+        count.incrementAndGet();
+        totalInFlight.incrementAndGet();
+        Future<T> future;
+        try {
+            future = f.apply(best.get());
+        } catch (RuntimeException e) {
+            count.decrementAndGet();
+            totalInFlight.decrementAndGet();
+            throw e;
+        }
+        future.andThen(ttry -> {
+            count.decrementAndGet();
+            totalInFlight.decrementAndGet();
+        });
+        return future;
+    }
+}
@@ -0,0 +1,101 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.functional.Option;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time after which the result of a command is not needed anymore.
+ * While a command runs, its deadline is available through Deadline.current() and the commands it executes through the
+ * same CommandContext get their timeout clamped to the time left, or fail fast when there is none left.
+ * Tasks and future callbacks run on the executor given to Command.runAsync see it too. From any other thread, it has
+ * to be passed explicitly with CommandContext.execute(command, deadline).
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+    private static final long INFINITE = Long.MAX_VALUE;
+
+    private final long nanos;
+
+    private Deadline(long nanos) {
+        this.nanos = nanos;
+    }
+
+    public static Deadline after(Duration timeout) {
+        long timeoutNanos = timeout.toNanos();
+        if (timeoutNanos >= INFINITE / 2) {
+            return new Deadline(INFINITE);
+        }
+        return new Deadline(System.nanoTime() + timeoutNanos);
+    }
+
+    public static Option<Deadline> current() {
+        return Option.apply(CURRENT.get());
+    }
+
+    /**
+     * Runs the callable with the given deadline as current deadline of the thread.
+     */
+    public static <T> T within(Option<Deadline> deadline, Callable<T> callable) throws Exception {
+        Deadline previous = CURRENT.get();
+        if (deadline.isDefined()) {
+            CURRENT.set(deadline.get());
+        } else {
+            CURRENT.remove();
+        }
+        try {
+            return callable.call();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    // the latest of two deadlines, none if one of them is none
+    static Option<Deadline> latest(Option<Deadline> a, Option<Deadline> b) {
+        if (!a.isDefined() || !b.isDefined()) {
+            return Option.none();
+        }
+        return a.get().isBefore(b.get()) ? b : a;
+    }
+
+    public Deadline earliest(Option<Deadline> other) {
+        if (other.isDefined() && other.get().isBefore(this)) {
+            return other.get();
+        }
+        return this;
+    }
+
+    public boolean isBefore(Deadline other) {
+        if (nanos == INFINITE || other.nanos == INFINITE) {
+            return other.nanos == INFINITE && nanos != INFINITE;
+        }
+        return nanos - other.nanos < 0L;
+    }
+
+    public long remainingNanos() {
+        if (nanos == INFINITE) {
+            return INFINITE;
+        }
+        return Math.max(0L, nanos - System.nanoTime());
+    }
+
+    public Duration remaining() {
+        return new Duration(remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() == 0L;
+    }
+
+    @Override
+    public String toString() {
+        return nanos == INFINITE ? "Deadline{never}" : "Deadline{in " + TimeUnit.NANOSECONDS.toMillis(remainingNanos()) + " millis}";
+    }
+}
@@ -0,0 +1,97 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.functional.Option;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ScheduledExecutorService given to Command.runAsync : every task runs within the deadline of the command, whatever
+ * the thread that submitted it. Callbacks of futures (map, flatMap, andThen) are usually submitted from the thread
+ * completing the future, which doesn't know the deadline, so it is bound to the executor instead.
+ * The lifecycle is the one of the executor of the context.
+ */
+class DeadlineScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final ScheduledExecutorService ec;
+    private final Option<Deadline> deadline;
+
+    DeadlineScheduledExecutor(ScheduledExecutorService ec, Deadline deadline) {
+        this.ec = ec;
+        this.deadline = Option.apply(deadline);
+    }
+
+    private Runnable within(Runnable command) {
+        return () -> {
+            try {
+                Deadline.within(deadline, () -> {
+                    command.run();
+                    return null;
+                });
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Exception e) {
+                // a Runnable can't throw a checked exception
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private <V> Callable<V> within(Callable<V> callable) {
+        return () -> Deadline.within(deadline, callable);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        ec.execute(within(command));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return ec.schedule(within(command), delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return ec.schedule(within(callable), delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return ec.scheduleAtFixedRate(within(command), initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        return ec.scheduleWithFixedDelay(within(command), initialDelay, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        ec.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return ec.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return ec.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return ec.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return ec.awaitTermination(timeout, unit);
+    }
+}
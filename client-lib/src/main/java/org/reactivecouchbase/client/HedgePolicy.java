@@ -0,0 +1,67 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+/**
+ * Hedging of a command : when an execution takes longer than the given percentile of the recent latencies of the
+ * command (and at least minDelay), a second execution is started and the first success wins.
+ * Hedges are limited by a RequestBudget of budgetRatio hedges per execution.
+ */
+public class HedgePolicy {
+
+    private static final HedgePolicy DEFAULT = new HedgePolicy(95.0, Duration.parse("5 millis"), 0.1, 20);
+
+    public final double percentile;
+    public final Duration minDelay;
+    public final double budgetRatio;
+    public final int minSamples;
+
+    private HedgePolicy(double percentile, Duration minDelay, double budgetRatio, int minSamples) {
+        this.percentile = percentile;
+        this.minDelay = minDelay;
+        this.budgetRatio = budgetRatio;
+        this.minSamples = minSamples;
+    }
+
+    public static HedgePolicy defaults() {
+        return DEFAULT;
+    }
+
+    public HedgePolicy withPercentile(double p) {
+        if (p <= 0.0 || p > 100.0) {
+            throw new IllegalArgumentException("percentile must be in ]0, 100]: " + p);
+        }
+        return new HedgePolicy(p, minDelay, budgetRatio, minSamples);
+    }
+
+    public HedgePolicy withMinDelay(Duration d) {
+        if (d.toMillis() < 0L) {
+            throw new IllegalArgumentException("minDelay can't be negative: " + d.toHumanReadable());
+        }
+        return new HedgePolicy(percentile, d, budgetRatio, minSamples);
+    }
+
+    public HedgePolicy withBudgetRatio(double r) {
+        if (r < 0.0) {
+            throw new IllegalArgumentException("budgetRatio can't be negative: " + r);
+        }
+        return new HedgePolicy(percentile, minDelay, r, minSamples);
+    }
+
+    public HedgePolicy withMinSamples(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("minSamples must be at least 1: " + n);
+        }
+        return new HedgePolicy(percentile, minDelay, budgetRatio, n);
+    }
+
+    @Override
+    public String toString() {
+        return "HedgePolicy{" +
+                "percentile=" + percentile +
+                ", minDelay=" + minDelay.toHumanReadable() +
+                ", budgetRatio=" + budgetRatio +
+                ", minSamples=" + minSamples +
+                '}';
+    }
+}
@@ -1,28 +1,127 @@
 package org.reactivecouchbase.client;
 
 import com.google.common.collect.ImmutableList;
+import org.reactivecouchbase.functional.Option;
 
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class InMemoryClientRegistry implements ClientRegistry {
 
+    private static class Subscriber {
+        private final RegistryListener listener;
+        // the version of the snapshot it started with
+        private final long from;
+
+        private Subscriber(RegistryListener listener, long from) {
+            this.listener = listener;
+            this.from = from;
+        }
+    }
+
+    // a change for every subscriber, or the first snapshot of a new one
+    private static class Delivery {
+        private final Subscriber target;
+        private final RegistryChange change;
+
+        private Delivery(Subscriber target, RegistryChange change) {
+            this.target = target;
+            this.change = change;
+        }
+    }
+
     private final ConcurrentHashMap<String, ServiceDescriptor> serviceCache = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger delivering = new AtomicInteger(0);
+    private volatile ServiceIndex index = ServiceIndex.EMPTY;
+    private volatile long version = 0L;
 
     public List<ServiceDescriptor> allServices() {
-        return ImmutableList.copyOf(serviceCache.values());
+        return index.all();
+    }
+
+    @Override
+    public List<ServiceDescriptor> services(String name, Option<String> version, ImmutableList<String> roles) {
+        return index.services(name, version, roles);
     }
 
     public Registration register(final ServiceDescriptor desc) {
-        if (!serviceCache.containsKey(desc.uid)) {
-            serviceCache.putIfAbsent(desc.uid, desc);
+        synchronized (this) {
+            if (serviceCache.putIfAbsent(desc.uid, desc) == null) {
+                reindex(ImmutableList.of(desc), ImmutableList.<ServiceDescriptor>of());
+            }
         }
-        return () -> serviceCache.remove(desc.uid);
+        deliver();
+        return () -> unregister(desc.uid);
     }
 
     @Override
     public void unregister(String uid) {
-        serviceCache.remove(uid);
+        synchronized (this) {
+            ServiceDescriptor desc = serviceCache.remove(uid);
+            if (desc != null) {
+                reindex(ImmutableList.<ServiceDescriptor>of(), ImmutableList.of(desc));
+            }
+        }
+        deliver();
+    }
+
+    @Override
+    public Option<Registration> subscribe(RegistryListener listener) {
+        final Subscriber subscriber;
+        synchronized (this) {
+            subscriber = new Subscriber(listener, version);
+            subscribers.add(subscriber);
+            deliveries.add(new Delivery(subscriber, new RegistryChange(version, index.all(), ImmutableList.<ServiceDescriptor>of())));
+        }
+        deliver();
+        return Option.<Registration>apply(() -> subscribers.remove(subscriber));
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    // copy on write, lookups only read the last published index, called with the lock held
+    private void reindex(ImmutableList<ServiceDescriptor> added, ImmutableList<ServiceDescriptor> removed) {
+        index = ServiceIndex.of(serviceCache.values());
+        version = version + 1;
+        deliveries.add(new Delivery(null, new RegistryChange(version, added, removed)));
+    }
+
+    // listeners are called outside of the lock, one change at a time and in version order
+    private void deliver() {
+        if (delivering.getAndIncrement() != 0) {
+            // the thread already delivering will see the new changes
+            return;
+        }
+        do {
+            Delivery delivery;
+            while ((delivery = deliveries.poll()) != null) {
+                if (delivery.target != null) {
+                    fire(delivery.target.listener, delivery.change);
+                } else {
+                    for (Subscriber subscriber : subscribers) {
+                        if (delivery.change.version > subscriber.from) {
+                            fire(subscriber.listener, delivery.change);
+                        }
+                    }
+                }
+            }
+        } while (delivering.decrementAndGet() != 0);
+    }
+
+    private void fire(RegistryListener listener, RegistryChange change) {
+        try {
+            listener.onChange(change);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
     }
 
 }
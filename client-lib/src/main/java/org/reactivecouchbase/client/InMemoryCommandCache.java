@@ -1,35 +1,268 @@
 package org.reactivecouchbase.client;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.functional.Try;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+/**
+ * On-heap command cache backed by Caffeine (W-TinyLFU admission and eviction).
+ * It can be bounded by entry count or by weight, weights being computed on the completed value of cached futures.
+ * Successful and failed results can have their own time to live, failures are dropped as soon as they complete unless
+ * a failure TTL is set. With a refresh delay, successful entries older than that delay are served while the command
+ * is run again in the background.
+ */
 public class InMemoryCommandCache implements CommandCache {
 
-    private final Cache<String, Object> cache;
+    public interface Weigher {
+        int weigh(String key, Object value);
+    }
+
+    private static final long UNBOUNDED = -1L;
+
+    private static class Entry {
+        private final Object value;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        private volatile Object resolved;
+        private volatile boolean done = false;
+        private volatile boolean failed = false;
+        private volatile long refreshAt = Long.MAX_VALUE;
+
+        private Entry(Object value) {
+            this.value = value;
+        }
+
+        private void complete(Try<?> result, long refreshAfterNanos) {
+            for (Object v : result.asSuccess()) {
+                resolved = v;
+                if (refreshAfterNanos != UNBOUNDED) {
+                    refreshAt = System.nanoTime() + refreshAfterNanos;
+                }
+            }
+            for (Throwable t : result.asFailure()) {
+                failed = true;
+            }
+            done = true;
+        }
+    }
+
+    private final long retainedNanos;
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final Weigher weigher;
+    private final long successTtlNanos;
+    private final long failureTtlNanos;
+    private final long refreshAfterNanos;
+    private final Cache<String, Entry> cache;
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+
+    private InMemoryCommandCache(long retainedNanos, long maximumSize, long maximumWeight, Weigher weigher, long successTtlNanos, long failureTtlNanos, long refreshAfterNanos) {
+        this.retainedNanos = retainedNanos;
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.successTtlNanos = successTtlNanos;
+        this.failureTtlNanos = failureTtlNanos;
+        this.refreshAfterNanos = refreshAfterNanos;
+        // maintenance runs on the calling threads, so cleanUp leaves the cache within its bounds
+        Caffeine<String, Entry> builder = Caffeine.newBuilder().recordStats().executor(Runnable::run).expireAfter(new Expiry<String, Entry>() {
+            @Override
+            public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                return expiresAfter(entry, UNBOUNDED);
+            }
+
+            @Override
+            public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                return expiresAfter(entry, UNBOUNDED);
+            }
+
+            @Override
+            public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                return expiresAfter(entry, currentDuration);
+            }
+        });
+        if (maximumWeight != UNBOUNDED) {
+            builder = builder.maximumWeight(maximumWeight).weigher((String key, Entry entry) -> {
+                Object value = entry.resolved;
+                return value == null ? 1 : weigher.weigh(key, value);
+            });
+        } else if (maximumSize != UNBOUNDED) {
+            builder = builder.maximumSize(maximumSize);
+        }
+        this.cache = builder.build();
+    }
 
-    private InMemoryCommandCache(Duration retained) {
-        this.cache = CacheBuilder.newBuilder().expireAfterAccess(retained.toMillis(), TimeUnit.MILLISECONDS).build();
+    // pending entries and successes without their own TTL are retained as long as they are accessed,
+    // other completed entries expire a fixed time after their completion whatever the reads
+    private long expiresAfter(Entry entry, long currentDuration) {
+        long ttl = retainedNanos;
+        if (entry.done) {
+            if (entry.failed) {
+                ttl = failureTtlNanos;
+            } else if (successTtlNanos != UNBOUNDED) {
+                ttl = successTtlNanos;
+            } else {
+                return retainedNanos;
+            }
+            if (currentDuration != UNBOUNDED) {
+                return currentDuration;
+            }
+        }
+        return ttl;
+    }
+
+    private static long nanos(Duration d) {
+        return TimeUnit.MILLISECONDS.toNanos(d.toMillis());
     }
 
     public static InMemoryCommandCache of(Duration d) {
-        return new InMemoryCommandCache(d);
+        return new InMemoryCommandCache(nanos(d), UNBOUNDED, UNBOUNDED, null, UNBOUNDED, 0L, UNBOUNDED);
+    }
+
+    public static InMemoryCommandCache of(Duration d, long maximumSize) {
+        return of(d).withMaximumSize(maximumSize);
+    }
+
+    public InMemoryCommandCache withMaximumSize(long n) {
+        return new InMemoryCommandCache(retainedNanos, n, UNBOUNDED, null, successTtlNanos, failureTtlNanos, refreshAfterNanos);
+    }
+
+    public InMemoryCommandCache withMaximumWeight(long w, Weigher weigher) {
+        return new InMemoryCommandCache(retainedNanos, UNBOUNDED, w, weigher, successTtlNanos, failureTtlNanos, refreshAfterNanos);
+    }
+
+    public InMemoryCommandCache withSuccessTtl(Duration ttl) {
+        return new InMemoryCommandCache(retainedNanos, maximumSize, maximumWeight, weigher, nanos(ttl), failureTtlNanos, refreshAfterNanos);
+    }
+
+    public InMemoryCommandCache withFailureTtl(Duration ttl) {
+        return new InMemoryCommandCache(retainedNanos, maximumSize, maximumWeight, weigher, successTtlNanos, nanos(ttl), refreshAfterNanos);
+    }
+
+    public InMemoryCommandCache withRefreshAfter(Duration softTtl) {
+        return new InMemoryCommandCache(retainedNanos, maximumSize, maximumWeight, weigher, successTtlNanos, failureTtlNanos, nanos(softTtl));
+    }
+
+    /**
+     * @return the time to live of successful results, null when they are retained as long as they are accessed
+     */
+    Duration successTtl() {
+        return successTtlNanos == UNBOUNDED ? null : new Duration(TimeUnit.NANOSECONDS.toMillis(successTtlNanos), TimeUnit.MILLISECONDS);
     }
 
     @Override
     public Object get(String key) {
-        return cache.getIfPresent(key);
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @Override
+    public Object get(String key, Supplier<Object> refresh) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (refreshAfterNanos != UNBOUNDED && entry.done && !entry.failed && System.nanoTime() - entry.refreshAt >= 0L && entry.refreshing.compareAndSet(false, true)) {
+            refresh(key, entry, refresh);
+        }
+        return entry.value;
+    }
+
+    private void refresh(String key, Entry stale, Supplier<Object> refresh) {
+        Object value = null;
+        try {
+            value = refresh.get();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        if (!(value instanceof Future)) {
+            stale.refreshAt = System.nanoTime() + refreshAfterNanos;
+            stale.refreshing.set(false);
+            return;
+        }
+        final Entry fresh = new Entry(value);
+        final long start = System.currentTimeMillis();
+        ((Future<Object>) value).andThen(ttry -> {
+            recordLoad(ttry, start);
+            fresh.complete(ttry, refreshAfterNanos);
+            if (fresh.failed) {
+                // keep serving the stale value, next attempt after another refresh delay
+                stale.refreshAt = System.nanoTime() + refreshAfterNanos;
+                stale.refreshing.set(false);
+            } else {
+                cache.asMap().replace(key, stale, fresh);
+            }
+        });
     }
 
     @Override
     public void put(String key, Object value) {
-        cache.put(key, value);
+        Entry entry = new Entry(value);
+        track(key, entry);
+        cache.put(key, entry);
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value) {
+        Entry entry = new Entry(value);
+        Entry existing = cache.asMap().putIfAbsent(key, entry);
+        if (existing != null) {
+            return existing.value;
+        }
+        track(key, entry);
+        return null;
+    }
+
+    private void track(String key, Entry entry) {
+        if (entry.value instanceof Future) {
+            final long start = System.currentTimeMillis();
+            ((Future<Object>) entry.value).andThen(ttry -> {
+                recordLoad(ttry, start);
+                entry.complete(ttry, refreshAfterNanos);
+                // forces a new weight and expiration now that the outcome is known
+                cache.asMap().replace(key, entry, entry);
+            });
+        } else {
+            entry.complete(Try.success(entry.value), refreshAfterNanos);
+        }
+    }
+
+    private void recordLoad(Try<?> result, long start) {
+        totalLoadTime.add(System.currentTimeMillis() - start);
+        for (Object v : result.asSuccess()) {
+            loadSuccessCount.increment();
+        }
+        for (Throwable t : result.asFailure()) {
+            loadFailureCount.increment();
+        }
     }
 
     @Override
     public void cleanUp() {
         cache.cleanUp();
     }
+
+    @Override
+    public CommandCacheStats stats() {
+        CacheStats stats = cache.stats();
+        return new CommandCacheStats(
+            stats.hitCount(),
+            stats.missCount(),
+            stats.evictionCount(),
+            loadSuccessCount.sum(),
+            loadFailureCount.sum(),
+            totalLoadTime.sum(),
+            cache.estimatedSize()
+        );
+    }
 }
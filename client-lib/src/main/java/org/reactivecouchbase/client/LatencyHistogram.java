@@ -0,0 +1,145 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Rolling latency histogram with log-linear buckets (4 sub-buckets per power of 2, so about 25% precision),
+ * recorded in microseconds. Like CircuitBreakerHealth, the window is split in time slots rolled lazily with a CAS,
+ * recording is a single atomic increment and never allocates except when a slot is rolled.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int DEFAULT_SLOTS = 2;
+
+    private static class Slot {
+        private final long period;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        private Slot(long period) {
+            this.period = period;
+        }
+    }
+
+    private final long slotMillis;
+    private final int numberOfSlots;
+    private final AtomicReferenceArray<Slot> slots;
+
+    public LatencyHistogram(Duration window) {
+        this(window, DEFAULT_SLOTS);
+    }
+
+    public LatencyHistogram(Duration window, int numberOfSlots) {
+        if (numberOfSlots < 1) {
+            throw new IllegalArgumentException("A rolling window needs at least one slot");
+        }
+        this.numberOfSlots = numberOfSlots;
+        this.slotMillis = Math.max(1L, window.toMillis() / numberOfSlots);
+        this.slots = new AtomicReferenceArray<Slot>(numberOfSlots);
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0L, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    // highest value of a bucket
+    static long value(int bucket) {
+        int exponent = bucket / SUB_BUCKETS;
+        if (exponent < SUB_BUCKET_BITS) {
+            return bucket;
+        }
+        int sub = bucket % SUB_BUCKETS;
+        long lower = ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1L;
+    }
+
+    private Slot currentSlot() {
+        long period = System.currentTimeMillis() / slotMillis;
+        int index = (int) (period % numberOfSlots);
+        Slot slot = slots.get(index);
+        while (slot == null || slot.period < period) {
+            Slot fresh = new Slot(period);
+            if (slots.compareAndSet(index, slot, fresh)) {
+                return fresh;
+            }
+            slot = slots.get(index);
+        }
+        return slot;
+    }
+
+    public void record(long duration, TimeUnit unit) {
+        currentSlot().counts.incrementAndGet(bucket(unit.toMicros(duration)));
+    }
+
+    // sum of a bucket over the slots of the window, read in place so a lookup never allocates
+    private long count(int bucket, long oldest) {
+        long count = 0L;
+        for (int i = 0; i < numberOfSlots; i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.period > oldest) {
+                count += slot.counts.get(bucket);
+            }
+        }
+        return count;
+    }
+
+    private long oldest() {
+        return (System.currentTimeMillis() / slotMillis) - numberOfSlots;
+    }
+
+    public long count() {
+        long oldest = oldest();
+        long count = 0L;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += count(b, oldest);
+        }
+        return count;
+    }
+
+    /**
+     * @return the latency under which percentile % of the recorded values are, -1 if nothing has been recorded
+     */
+    public long percentile(double percentile, TimeUnit unit) {
+        return percentile(percentile, 1L, unit);
+    }
+
+    /**
+     * Same as percentile(percentile, unit), -1 if less than minCount values have been recorded.
+     */
+    public long percentile(double percentile, long minCount, TimeUnit unit) {
+        long oldest = oldest();
+        long total = 0L;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += count(b, oldest);
+        }
+        if (total == 0L || total < minCount) {
+            return -1L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += count(b, oldest);
+            if (seen >= target) {
+                return unit.convert(value(b), TimeUnit.MICROSECONDS);
+            }
+        }
+        return unit.convert(value(BUCKETS - 1), TimeUnit.MICROSECONDS);
+    }
+
+    public void reset() {
+        for (int i = 0; i < numberOfSlots; i++) {
+            slots.set(i, null);
+        }
+    }
+}
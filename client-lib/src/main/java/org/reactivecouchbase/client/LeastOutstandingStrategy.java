@@ -0,0 +1,56 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Power of two choices : picks two random instances and keeps the one with the fewest calls in flight.
+ */
+class LeastOutstandingStrategy implements LoadBalancingStrategy {
+
+    private final Cache<String, AtomicInteger> outstanding = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+
+    private AtomicInteger outstanding(ServiceDescriptor desc) {
+        AtomicInteger count = outstanding.getIfPresent(desc.uid);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger(0);
+            count = outstanding.asMap().putIfAbsent(desc.uid, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public ServiceDescriptor choose(List<ServiceDescriptor> services) {
+        int size = services.size();
+        if (size == 1) {
+            return services.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceDescriptor a = services.get(first);
+        ServiceDescriptor b = services.get(second);
+        return outstanding(a).get() <= outstanding(b).get() ? a : b;
+    }
+
+    @Override
+    public void onStart(ServiceDescriptor desc) {
+        outstanding(desc).incrementAndGet();
+    }
+
+    @Override
+    public void onComplete(ServiceDescriptor desc, long latencyNanos, boolean success) {
+        outstanding(desc).decrementAndGet();
+    }
+}
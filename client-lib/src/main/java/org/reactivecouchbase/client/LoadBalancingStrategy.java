@@ -0,0 +1,37 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.List;
+
+/**
+ * Chooses the instance serving the next call of a LoadbalancedClient.
+ * The client reports the start and the outcome of each call so strategies can track load and latency per instance.
+ */
+public interface LoadBalancingStrategy {
+
+    /**
+     * @param services the matching instances, never empty
+     */
+    ServiceDescriptor choose(List<ServiceDescriptor> services);
+
+    default void onStart(ServiceDescriptor desc) {}
+
+    default void onComplete(ServiceDescriptor desc, long latencyNanos, boolean success) {}
+
+    static LoadBalancingStrategy roundRobin() {
+        return new RoundRobinStrategy();
+    }
+
+    static LoadBalancingStrategy leastOutstanding() {
+        return new LeastOutstandingStrategy();
+    }
+
+    static LoadBalancingStrategy peakEwma() {
+        return peakEwma(Duration.of("10 sec"));
+    }
+
+    static LoadBalancingStrategy peakEwma(Duration decay) {
+        return new PeakEwmaStrategy(decay);
+    }
+}
@@ -5,41 +5,99 @@ import org.reactivecouchbase.concurrent.Future;
 import org.reactivecouchbase.functional.Option;
 
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 public class LoadbalancedClient implements Client {
 
+    // the instances resolved for a version of the registry
+    private static class Resolved {
+        private final long version;
+        private final List<ServiceDescriptor> services;
+
+        private Resolved(long version, List<ServiceDescriptor> services) {
+            this.version = version;
+            this.services = services;
+        }
+    }
+
     private final String name;
     private final Option<String> version;
     private final ImmutableList<String> roles;
     private final ClientRegistry registry;
-    private final AtomicLong counter = new AtomicLong(0);
+    private final LoadBalancingStrategy strategy;
+    private final Option<OutlierDetector> outliers;
+    private volatile Resolved resolved = null;
 
     LoadbalancedClient(String name, Option<String> version, ImmutableList<String> roles, ClientRegistry registry) {
+        this(name, version, roles, registry, LoadBalancingStrategy.roundRobin());
+    }
+
+    LoadbalancedClient(String name, Option<String> version, ImmutableList<String> roles, ClientRegistry registry, LoadBalancingStrategy strategy) {
+        this(name, version, roles, registry, strategy, Option.<OutlierPolicy>none());
+    }
+
+    LoadbalancedClient(String name, Option<String> version, ImmutableList<String> roles, ClientRegistry registry, LoadBalancingStrategy strategy, Option<OutlierPolicy> outlierPolicy) {
         this.name = name;
         this.version = version;
         this.roles = roles;
         this.registry = registry;
+        this.strategy = strategy;
+        this.outliers = outlierPolicy.map(OutlierDetector::new);
+    }
+
+    // looked up again only when the registry has changed, if it tracks its versions
+    private List<ServiceDescriptor> services() {
+        long registryVersion = registry.version();
+        if (registryVersion < 0L) {
+            return registry.services(name, version, roles);
+        }
+        Resolved current = resolved;
+        if (current == null || current.version != registryVersion) {
+            // read after the version, so at least as recent as it
+            current = new Resolved(registryVersion, registry.services(name, version, roles));
+            resolved = current;
+        }
+        return current.services;
     }
 
     public Option<ServiceDescriptor> bestService() {
-        List<ServiceDescriptor> services = registry.services(name, version, roles);
+        List<ServiceDescriptor> services = services();
         if (services.isEmpty()) return Option.none();
-        int size = services.size();
-        Long index = (counter.incrementAndGet() % (size > 0 ? size : 1));
-        return Option.apply(services.get(index.intValue()));
+        if (outliers.isDefined()) {
+            services = outliers.get().available(services);
+        }
+        return Option.apply(strategy.choose(services));
     }
 
     @Override
     public <T> Future<T> call(final Function<ServiceDescriptor, T> f) {
-        return bestService().map(input -> {
-            return Future.successful(f.apply(input));
-        }).getOrElse(Future.<T>failed(new ServiceDescNotFoundException("Service not found " + name + ", " + version + ", " + roles)));
+        return callM(input -> Future.successful(f.apply(input)));
     }
 
     @Override
     public <T> Future<T> callM(final Function<ServiceDescriptor, Future<T>> f) {
-        return bestService().map(f::apply).getOrElse(Future.<T>failed(new ServiceDescNotFoundException("Service not found " + name + ", " + version + ", " + roles)));
+        Option<ServiceDescriptor> best = bestService();
+        if (!best.isDefined()) {
+            return Future.failed(new ServiceDescNotFoundException("Service not found " + name + ", " + version + ", " + roles));
+        }
+        final ServiceDescriptor desc = best.get();
+        final long start = System.nanoTime();
+        strategy.onStart(desc);
+        Future<T> future;
+        try {
+            future = f.apply(desc);
+        } catch (RuntimeException e) {
+            onComplete(desc, System.nanoTime() - start, false);
+            throw e;
+        }
+        future.andThen(ttry -> onComplete(desc, System.nanoTime() - start, ttry.isSuccess()));
+        return future;
+    }
+
+    private void onComplete(ServiceDescriptor desc, long latencyNanos, boolean success) {
+        strategy.onComplete(desc, latencyNanos, success);
+        for (OutlierDetector detector : outliers) {
+            detector.onComplete(desc, latencyNanos, success);
+        }
     }
 }
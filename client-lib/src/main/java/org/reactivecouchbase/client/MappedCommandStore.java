@@ -0,0 +1,361 @@
+package org.reactivecouchbase.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of serialized values in a memory-mapped file.
+ * Only the index (key to record position) lives on the heap, it is rebuilt by scanning the file when it is opened.
+ * The file is mapped in segments of at most 1 GB so it can be larger than 2 GB, records may span two segments.
+ * Removals append a tombstone (a record that has already expired) so removed keys don't come back after a restart.
+ * When the file is full, live records are slid down in place at the beginning of the file. The magic number is
+ * cleared while they move, a file left by a crash during a compaction is started again empty.
+ * Once closed, the store is empty and can't be written to.
+ *
+ * File layout : magic (int), then records [length (int), crc (int), expiresAt (long), keyLength (int), key, value],
+ * terminated by a zero length.
+ */
+class MappedCommandStore {
+
+    private static final int MAGIC = 0x52434331;
+    private static final int FILE_HEADER = 4;
+    private static final int RECORD_HEADER = 20;
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private final File file;
+    private final long capacity;
+    private final int segmentSize;
+    private final MappedByteBuffer[] segments;
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long position = FILE_HEADER;
+    private boolean closed = false;
+
+    MappedCommandStore(File file, long capacity) {
+        this(file, capacity, SEGMENT_SIZE);
+    }
+
+    MappedCommandStore(File file, long capacity, int segmentSize) {
+        this.file = file;
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.segments = new MappedByteBuffer[(int) ((capacity + segmentSize - 1) / segmentSize)];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(capacity);
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i * segmentSize;
+                segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, Math.min(segmentSize, capacity - start));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map " + file.getAbsolutePath(), e);
+        }
+        if (getInt(0) == MAGIC) {
+            rebuildIndex();
+        } else {
+            putInt(0, MAGIC);
+            terminate();
+        }
+    }
+
+    private void rebuildIndex() {
+        long now = System.currentTimeMillis();
+        long pos = FILE_HEADER;
+        while (pos + RECORD_HEADER <= capacity) {
+            int length = getInt(pos);
+            if (length < RECORD_HEADER || pos + length > capacity || getInt(pos + 4) != crc(pos, length)) {
+                // end of the log, or a record that has not been completely written
+                break;
+            }
+            String key = readKey(pos);
+            if (getLong(pos + 8) > now) {
+                index.put(key, pos);
+            } else {
+                index.remove(key);
+            }
+            pos += length;
+        }
+        position = pos;
+        terminate();
+    }
+
+    private void terminate() {
+        if (position + 4 <= capacity) {
+            putInt(position, 0);
+        }
+    }
+
+    private void read(long pos, byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer segment = segments[(int) (pos / segmentSize)].duplicate();
+            int start = (int) (pos % segmentSize);
+            int n = Math.min(length, segment.capacity() - start);
+            segment.position(start);
+            segment.get(bytes, offset, n);
+            pos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void write(long pos, byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer segment = segments[(int) (pos / segmentSize)].duplicate();
+            int start = (int) (pos % segmentSize);
+            int n = Math.min(length, segment.capacity() - start);
+            segment.position(start);
+            segment.put(bytes, offset, n);
+            pos += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private int getInt(long pos) {
+        MappedByteBuffer segment = segments[(int) (pos / segmentSize)];
+        int start = (int) (pos % segmentSize);
+        if (start + 4 <= segment.capacity()) {
+            return segment.getInt(start);
+        }
+        byte[] bytes = new byte[4];
+        read(pos, bytes, 0, 4);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private long getLong(long pos) {
+        MappedByteBuffer segment = segments[(int) (pos / segmentSize)];
+        int start = (int) (pos % segmentSize);
+        if (start + 8 <= segment.capacity()) {
+            return segment.getLong(start);
+        }
+        byte[] bytes = new byte[8];
+        read(pos, bytes, 0, 8);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private void putInt(long pos, int value) {
+        MappedByteBuffer segment = segments[(int) (pos / segmentSize)];
+        int start = (int) (pos % segmentSize);
+        if (start + 4 <= segment.capacity()) {
+            segment.putInt(start, value);
+            return;
+        }
+        write(pos, ByteBuffer.allocate(4).putInt(value).array(), 0, 4);
+    }
+
+    private int crc(long pos, int length) {
+        byte[] bytes = new byte[length - 8];
+        read(pos + 8, bytes, 0, bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private String readKey(long pos) {
+        byte[] key = new byte[getInt(pos + 16)];
+        read(pos + RECORD_HEADER, key, 0, key.length);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    byte[] get(String key) {
+        Long pos = index.get(key);
+        if (pos == null) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            if (closed || !pos.equals(index.get(key))) {
+                // moved by a compaction
+                return null;
+            }
+            if (getLong(pos + 8) <= System.currentTimeMillis()) {
+                index.remove(key, pos);
+                return null;
+            }
+            int length = getInt(pos);
+            int keyLength = getInt(pos + 16);
+            byte[] value = new byte[length - RECORD_HEADER - keyLength];
+            read(pos + RECORD_HEADER + keyLength, value, 0, value.length);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean put(String key, byte[] value, long expiresAt) {
+        byte[] record = record(key, value, expiresAt);
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (append(record)) {
+                index.put(key, position - record.length);
+                return true;
+            }
+            // too big for the file, an older value must not be served instead
+            index.remove(key);
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String key) {
+        byte[] tombstone = record(key, new byte[0], 0L);
+        lock.writeLock().lock();
+        try {
+            if (index.remove(key) != null && !closed) {
+                // when it doesn't fit, the compaction has dropped the records of the key anyway
+                append(tombstone);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static byte[] record(String key, byte[] value, long expiresAt) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + keyBytes.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length);
+        record.putInt(0);
+        record.putLong(expiresAt);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    // called with the write lock held
+    private boolean append(byte[] record) {
+        if (position + record.length > capacity) {
+            compact();
+            if (position + record.length > capacity) {
+                return false;
+            }
+        }
+        write(position, record, 0, record.length);
+        position += record.length;
+        terminate();
+        return true;
+    }
+
+    // called with the write lock held
+    private void compact() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, Long>> live = new ArrayList<Map.Entry<String, Long>>(index.size());
+        for (Map.Entry<String, Long> e : index.entrySet()) {
+            if (getLong(e.getValue() + 8) > now) {
+                live.add(e);
+            } else {
+                index.remove(e.getKey(), e.getValue());
+            }
+        }
+        // records only move towards the beginning of the file, in log order, so none is overwritten before it moves
+        live.sort(Map.Entry.comparingByValue());
+        putInt(0, 0);
+        byte[] chunk = new byte[COPY_CHUNK];
+        long target = FILE_HEADER;
+        for (Map.Entry<String, Long> e : live) {
+            long source = e.getValue();
+            int length = getInt(source);
+            if (source != target) {
+                for (int offset = 0; offset < length; offset += chunk.length) {
+                    int n = Math.min(chunk.length, length - offset);
+                    read(source + offset, chunk, 0, n);
+                    write(target + offset, chunk, 0, n);
+                }
+                index.put(e.getKey(), target);
+            }
+            target += length;
+        }
+        position = target;
+        terminate();
+        putInt(0, MAGIC);
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    void force() {
+        lock.readLock().lock();
+        try {
+            if (!closed) {
+                for (MappedByteBuffer segment : segments) {
+                    segment.force();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the segments to the file and unmaps them, the store is empty afterwards.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            index.clear();
+            for (int i = 0; i < segments.length; i++) {
+                segments[i].force();
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // there is no public API to unmap a buffer before it is garbage collected
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                // Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                c.getClass().getMethod("clean").invoke(c);
+            } catch (Exception ex) {
+                // left to the garbage collector
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedCommandStore(" + file.getAbsolutePath() + ")";
+    }
+}
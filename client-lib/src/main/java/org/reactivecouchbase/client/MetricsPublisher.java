@@ -0,0 +1,10 @@
+package org.reactivecouchbase.client;
+
+/**
+ * Exports the metrics of the commands of a CommandContext, called periodically from the executor of the context,
+ * once per command. The metrics are live and cumulative, a publisher needing deltas keeps the previous values.
+ */
+public interface MetricsPublisher {
+
+    void publish(CommandMetrics metrics);
+}
@@ -0,0 +1,187 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import org.reactivecouchbase.common.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-instance health of a LoadbalancedClient, see OutlierPolicy.
+ */
+class OutlierDetector {
+
+    private class Instance {
+        private final CircuitBreakerHealth health = new CircuitBreakerHealth(policy.metricsWindow);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        private final AtomicLong ejectedUntil = new AtomicLong(0L);
+        private final AtomicLong reinstatedAt = new AtomicLong(0L);
+        private final AtomicInteger ejections = new AtomicInteger(0);
+
+        private boolean isEjected(long now) {
+            long until = ejectedUntil.get();
+            if (until == 0L) {
+                return false;
+            }
+            if (now < until) {
+                return true;
+            }
+            if (ejectedUntil.compareAndSet(until, 0L)) {
+                ejected.decrementAndGet();
+                health.reset();
+                consecutiveFailures.set(0);
+                reinstatedAt.set(now);
+            }
+            return false;
+        }
+
+        // share of the traffic an instance back from ejection should get, from 0 to 1 over the ramp up
+        private double weight(long now) {
+            long since = reinstatedAt.get();
+            if (since == 0L) {
+                return 1.0;
+            }
+            long elapsed = now - since;
+            if (elapsed >= rampUpMillis) {
+                if (reinstatedAt.compareAndSet(since, 0L)) {
+                    unhealthy.decrementAndGet();
+                }
+                return 1.0;
+            }
+            return Math.max(0.0, (double) elapsed / rampUpMillis);
+        }
+
+        private void eject(long now) {
+            if (instances < 2) {
+                return;
+            }
+            int max = Math.max(1, (int) (instances * policy.maxEjectionPercentage / 100.0));
+            while (true) {
+                int current = ejected.get();
+                if (current >= max) {
+                    return;
+                }
+                if (ejected.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+            long duration = Math.min(baseEjectionMillis * (ejections.get() + 1), maxEjectionMillis);
+            if (!ejectedUntil.compareAndSet(0L, now + duration)) {
+                // ejected concurrently
+                ejected.decrementAndGet();
+                return;
+            }
+            ejections.incrementAndGet();
+            if (reinstatedAt.getAndSet(0L) == 0L) {
+                unhealthy.incrementAndGet();
+            }
+        }
+    }
+
+    private final OutlierPolicy policy;
+    private final long baseEjectionMillis;
+    private final long maxEjectionMillis;
+    private final long rampUpMillis;
+    private final AtomicInteger ejected = new AtomicInteger(0);
+    // ejected or ramping up instances
+    private final AtomicInteger unhealthy = new AtomicInteger(0);
+    private final Cache<String, Instance> states;
+    private volatile int instances = 0;
+
+    OutlierDetector(OutlierPolicy policy) {
+        this.policy = policy;
+        this.baseEjectionMillis = policy.baseEjectionTime.toMillis();
+        this.maxEjectionMillis = policy.maxEjectionTime.toMillis();
+        this.rampUpMillis = Math.max(1L, policy.rampUp.toMillis());
+        this.states = CacheBuilder.newBuilder()
+                .expireAfterAccess(Math.max(10L, TimeUnit.MILLISECONDS.toMinutes(maxEjectionMillis) * 2), TimeUnit.MINUTES)
+                .removalListener((RemovalListener<String, Instance>) notification -> {
+                    Instance instance = notification.getValue();
+                    if (instance.ejectedUntil.getAndSet(0L) != 0L) {
+                        ejected.decrementAndGet();
+                        unhealthy.decrementAndGet();
+                    } else if (instance.reinstatedAt.getAndSet(0L) != 0L) {
+                        unhealthy.decrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    private Instance instance(ServiceDescriptor desc) {
+        Instance instance = states.getIfPresent(desc.uid);
+        if (instance == null) {
+            Instance newInstance = new Instance();
+            instance = states.asMap().putIfAbsent(desc.uid, newInstance);
+            if (instance == null) {
+                instance = newInstance;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * The instances that can be called, never empty if services is not empty.
+     */
+    List<ServiceDescriptor> available(List<ServiceDescriptor> services) {
+        instances = services.size();
+        if (unhealthy.get() == 0) {
+            return services;
+        }
+        long now = System.currentTimeMillis();
+        List<ServiceDescriptor> available = new ArrayList<ServiceDescriptor>(services.size());
+        for (ServiceDescriptor desc : services) {
+            Instance instance = states.getIfPresent(desc.uid);
+            if (instance == null) {
+                available.add(desc);
+            } else if (!instance.isEjected(now)) {
+                double weight = instance.weight(now);
+                if (weight >= 1.0 || ThreadLocalRandom.current().nextDouble() < weight) {
+                    available.add(desc);
+                }
+            }
+        }
+        return available.isEmpty() ? services : available;
+    }
+
+    void onComplete(ServiceDescriptor desc, long latencyNanos, boolean success) {
+        Instance instance = instance(desc);
+        long now = System.currentTimeMillis();
+        if (instance.isEjected(now)) {
+            return;
+        }
+        Duration duration = new Duration(TimeUnit.NANOSECONDS.toMillis(latencyNanos), TimeUnit.MILLISECONDS);
+        if (success) {
+            instance.consecutiveFailures.set(0);
+            instance.health.markSuccess(duration);
+            if (instance.reinstatedAt.get() == 0L && instance.ejections.get() > 0 && instance.health.getTotalRequests() >= policy.requestVolumeThreshold) {
+                // healthy for a while since its last ejection, the next one starts from the base time again
+                instance.ejections.set(0);
+            }
+        } else {
+            instance.health.markFailure(duration);
+            if (instance.consecutiveFailures.incrementAndGet() >= policy.consecutiveFailures) {
+                instance.eject(now);
+                return;
+            }
+        }
+        CircuitBreakerHealth.Snapshot snapshot = instance.health.snapshot();
+        if (snapshot.getTotalRequests() < policy.requestVolumeThreshold) {
+            return;
+        }
+        if (snapshot.getErrorPercentage() >= policy.errorThresholdPercentage) {
+            instance.eject(now);
+            return;
+        }
+        for (Duration threshold : policy.slowCallThreshold) {
+            if (snapshot.getMeanTime() >= threshold.toMillis()) {
+                instance.eject(now);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.functional.Option;
+
+/**
+ * Settings of the per-instance outlier ejection of a LoadbalancedClient.
+ * An instance is ejected after too many consecutive failures, or when its error rate (or its mean latency, if
+ * slowCallThreshold is set) over the metrics window is too high. Ejection lasts baseEjectionTime times the number of
+ * ejections of the instance, up to maxEjectionTime, then the instance gets its share of traffic back over rampUp.
+ * No more than maxEjectionPercentage of the instances are ejected at once.
+ */
+public class OutlierPolicy {
+
+    private static final OutlierPolicy DEFAULT = new OutlierPolicy(5, 20, 50.0, Duration.parse("10 sec"), Option.<Duration>none(), Duration.parse("30 sec"), Duration.parse("5 min"), 50.0, Duration.parse("30 sec"));
+
+    public final int consecutiveFailures;
+    public final int requestVolumeThreshold;
+    public final double errorThresholdPercentage;
+    public final Duration metricsWindow;
+    public final Option<Duration> slowCallThreshold;
+    public final Duration baseEjectionTime;
+    public final Duration maxEjectionTime;
+    public final double maxEjectionPercentage;
+    public final Duration rampUp;
+
+    private OutlierPolicy(int consecutiveFailures, int requestVolumeThreshold, double errorThresholdPercentage, Duration metricsWindow, Option<Duration> slowCallThreshold, Duration baseEjectionTime, Duration maxEjectionTime, double maxEjectionPercentage, Duration rampUp) {
+        this.consecutiveFailures = consecutiveFailures;
+        this.requestVolumeThreshold = requestVolumeThreshold;
+        this.errorThresholdPercentage = errorThresholdPercentage;
+        this.metricsWindow = metricsWindow;
+        this.slowCallThreshold = slowCallThreshold;
+        this.baseEjectionTime = baseEjectionTime;
+        this.maxEjectionTime = maxEjectionTime;
+        this.maxEjectionPercentage = maxEjectionPercentage;
+        this.rampUp = rampUp;
+    }
+
+    public static OutlierPolicy defaults() {
+        return DEFAULT;
+    }
+
+    private static void checkPositive(String name, Duration d) {
+        if (d.toMillis() <= 0L) {
+            throw new IllegalArgumentException(name + " must be positive: " + d.toHumanReadable());
+        }
+    }
+
+    public OutlierPolicy withConsecutiveFailures(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("consecutiveFailures must be at least 1: " + n);
+        }
+        return new OutlierPolicy(n, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, slowCallThreshold, baseEjectionTime, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withRequestVolumeThreshold(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("requestVolumeThreshold must be at least 1: " + n);
+        }
+        return new OutlierPolicy(consecutiveFailures, n, errorThresholdPercentage, metricsWindow, slowCallThreshold, baseEjectionTime, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withErrorThresholdPercentage(double p) {
+        if (p <= 0.0 || p > 100.0) {
+            throw new IllegalArgumentException("errorThresholdPercentage must be in ]0, 100]: " + p);
+        }
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, p, metricsWindow, slowCallThreshold, baseEjectionTime, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withMetricsWindow(Duration d) {
+        checkPositive("metricsWindow", d);
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, d, slowCallThreshold, baseEjectionTime, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withSlowCallThreshold(Duration d) {
+        checkPositive("slowCallThreshold", d);
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, Option.apply(d), baseEjectionTime, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withBaseEjectionTime(Duration d) {
+        checkPositive("baseEjectionTime", d);
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, slowCallThreshold, d, maxEjectionTime, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withMaxEjectionTime(Duration d) {
+        checkPositive("maxEjectionTime", d);
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, slowCallThreshold, baseEjectionTime, d, maxEjectionPercentage, rampUp);
+    }
+
+    public OutlierPolicy withMaxEjectionPercentage(double p) {
+        if (p < 0.0 || p > 100.0) {
+            throw new IllegalArgumentException("maxEjectionPercentage must be in [0, 100]: " + p);
+        }
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, slowCallThreshold, baseEjectionTime, maxEjectionTime, p, rampUp);
+    }
+
+    public OutlierPolicy withRampUp(Duration d) {
+        if (d.toMillis() < 0L) {
+            throw new IllegalArgumentException("rampUp can't be negative: " + d.toHumanReadable());
+        }
+        return new OutlierPolicy(consecutiveFailures, requestVolumeThreshold, errorThresholdPercentage, metricsWindow, slowCallThreshold, baseEjectionTime, maxEjectionTime, maxEjectionPercentage, d);
+    }
+
+    @Override
+    public String toString() {
+        return "OutlierPolicy{" +
+                "consecutiveFailures=" + consecutiveFailures +
+                ", requestVolumeThreshold=" + requestVolumeThreshold +
+                ", errorThresholdPercentage=" + errorThresholdPercentage +
+                ", metricsWindow=" + metricsWindow.toHumanReadable() +
+                ", slowCallThreshold=" + slowCallThreshold.map(Duration::toHumanReadable) +
+                ", baseEjectionTime=" + baseEjectionTime.toHumanReadable() +
+                ", maxEjectionTime=" + maxEjectionTime.toHumanReadable() +
+                ", maxEjectionPercentage=" + maxEjectionPercentage +
+                ", rampUp=" + rampUp.toHumanReadable() +
+                '}';
+    }
+}
@@ -0,0 +1,102 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.reactivecouchbase.common.Duration;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Power of two choices on a cost made of the peak-sensitive moving average of the latency times the calls in flight.
+ * The average jumps to any latency above it and decays towards lower ones with the configured time constant,
+ * so a degraded instance is avoided right away and gets traffic back progressively.
+ */
+class PeakEwmaStrategy implements LoadBalancingStrategy {
+
+    // cost of an instance with calls in flight but no measured latency yet
+    private static final double PENALTY = Long.MAX_VALUE >> 16;
+    // a failure counts as a slow call at least, otherwise an instance failing fast would attract traffic
+    private static final long FAILURE_LATENCY = TimeUnit.SECONDS.toNanos(1);
+
+    private static class Stats {
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private long stamp = System.nanoTime();
+        private double ewma = 0.0;
+
+        // the weight of the average depends on the time since the previous sample
+        private synchronized void observe(long latencyNanos, double decayNanos) {
+            long now = System.nanoTime();
+            double elapsed = Math.max(0L, now - stamp);
+            stamp = now;
+            if (latencyNanos > ewma) {
+                ewma = latencyNanos;
+            } else {
+                double w = Math.exp(-elapsed / decayNanos);
+                ewma = ewma * w + latencyNanos * (1.0 - w);
+            }
+        }
+
+        private synchronized double cost(double decayNanos) {
+            // seen as decaying towards zero since the last sample, an instance that is avoided gets a chance to be
+            // measured again, without changing the average the next samples are blended with
+            double elapsed = Math.max(0L, System.nanoTime() - stamp);
+            double decayed = ewma * Math.exp(-elapsed / decayNanos);
+            int pending = outstanding.get();
+            if (ewma == 0.0 && pending != 0) {
+                return PENALTY + pending;
+            }
+            return decayed * (pending + 1);
+        }
+    }
+
+    private final double decayNanos;
+    private final Cache<String, Stats> stats = CacheBuilder.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+
+    PeakEwmaStrategy(Duration decay) {
+        this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decay.toMillis());
+    }
+
+    private Stats stats(ServiceDescriptor desc) {
+        Stats s = stats.getIfPresent(desc.uid);
+        if (s == null) {
+            Stats newStats = new Stats();
+            s = stats.asMap().putIfAbsent(desc.uid, newStats);
+            if (s == null) {
+                s = newStats;
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public ServiceDescriptor choose(List<ServiceDescriptor> services) {
+        int size = services.size();
+        if (size == 1) {
+            return services.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        ServiceDescriptor a = services.get(first);
+        ServiceDescriptor b = services.get(second);
+        return stats(a).cost(decayNanos) <= stats(b).cost(decayNanos) ? a : b;
+    }
+
+    @Override
+    public void onStart(ServiceDescriptor desc) {
+        stats(desc).outstanding.incrementAndGet();
+    }
+
+    @Override
+    public void onComplete(ServiceDescriptor desc, long latencyNanos, boolean success) {
+        Stats s = stats(desc);
+        s.outstanding.decrementAndGet();
+        s.observe(success ? latencyNanos : Math.max(latencyNanos, FAILURE_LATENCY), decayNanos);
+    }
+}
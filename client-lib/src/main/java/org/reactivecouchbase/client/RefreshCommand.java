@@ -0,0 +1,95 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Future;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs a command to refresh its cached value in the background. The fallback is left out so the refresh
+ * only succeeds on an actual success of the command and never replaces a good stale value with a fallback.
+ */
+class RefreshCommand<T> extends Command<T> {
+
+    private final Command<T> command;
+
+    RefreshCommand(Command<T> command) {
+        this.command = command;
+    }
+
+    @Override
+    public Future<T> runAsync(ScheduledExecutorService ec) {
+        return command.runAsync(ec);
+    }
+
+    @Override
+    public T run() {
+        return command.run();
+    }
+
+    @Override
+    public Duration timeout() {
+        return command.timeout();
+    }
+
+    @Override
+    public String name() {
+        return command.name();
+    }
+
+    @Override
+    public String group() {
+        return command.group();
+    }
+
+    @Override
+    public T fallback() {
+        return null;
+    }
+
+    @Override
+    public String cacheKey() {
+        return command.cacheKey();
+    }
+
+    @Override
+    public String collapseKey() {
+        return command.collapseKey();
+    }
+
+    @Override
+    public CommandPolicy policy() {
+        return command.policy();
+    }
+
+    @Override
+    public String batchGroup() {
+        return command.batchGroup();
+    }
+
+    @Override
+    public BatchCommand<T> batch(List<String> collapseKeys) {
+        return command.batch(collapseKeys);
+    }
+
+    @Override
+    public int retry() {
+        return command.retry();
+    }
+
+    @Override
+    public boolean exponentialBackoff() {
+        return command.exponentialBackoff();
+    }
+
+    @Override
+    public boolean isRetryable(Throwable t) {
+        return command.isRetryable(t);
+    }
+
+    @Override
+    public HedgePolicy hedge() {
+        return command.hedge();
+    }
+}
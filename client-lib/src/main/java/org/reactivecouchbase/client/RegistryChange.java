@@ -0,0 +1,33 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Delta between two snapshots of a registry. Versions strictly increase for a given registry,
+ * the first change received by a new subscriber holds the whole current snapshot as added services.
+ */
+public class RegistryChange {
+
+    public final long version;
+    public final ImmutableList<ServiceDescriptor> added;
+    public final ImmutableList<ServiceDescriptor> removed;
+
+    public RegistryChange(long version, ImmutableList<ServiceDescriptor> added, ImmutableList<ServiceDescriptor> removed) {
+        this.version = version;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryChange{" +
+                "version=" + version +
+                ", added=" + added +
+                ", removed=" + removed +
+                '}';
+    }
+}
@@ -0,0 +1,5 @@
+package org.reactivecouchbase.client;
+
+public interface RegistryListener {
+    void onChange(RegistryChange change);
+}
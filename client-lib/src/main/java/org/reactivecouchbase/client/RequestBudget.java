@@ -0,0 +1,86 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Budget of extra requests (retries, hedges) as a fraction of the regular ones.
+ * Each regular request deposits ratio tokens, each extra request withdraws one. Deposits and withdrawals only live for
+ * the ttl, and a reserve of minPerSecond tokens per second of ttl is always available so low traffic can still get some.
+ */
+public class RequestBudget {
+
+    private static final int BUCKETS = 10;
+
+    private static class Bucket {
+        private final long period;
+        private final LongAdder deposits = new LongAdder();
+        private final LongAdder withdrawals = new LongAdder();
+
+        private Bucket(long period) {
+            this.period = period;
+        }
+    }
+
+    private final double ratio;
+    private final int minPerSecond;
+    private final double reserve;
+    private final long bucketMillis;
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<Bucket>(BUCKETS);
+
+    public RequestBudget(double ratio, int minPerSecond, Duration ttl) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.reserve = minPerSecond * (ttl.toMillis() / 1000.0);
+        this.bucketMillis = Math.max(1L, ttl.toMillis() / BUCKETS);
+    }
+
+    private Bucket currentBucket() {
+        long period = System.currentTimeMillis() / bucketMillis;
+        int index = (int) (period % BUCKETS);
+        Bucket bucket = buckets.get(index);
+        while (bucket == null || bucket.period < period) {
+            Bucket fresh = new Bucket(period);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+            bucket = buckets.get(index);
+        }
+        return bucket;
+    }
+
+    boolean hasSettings(double ratio, int minPerSecond) {
+        return this.ratio == ratio && this.minPerSecond == minPerSecond;
+    }
+
+    public void deposit() {
+        currentBucket().deposits.increment();
+    }
+
+    public double balance() {
+        long oldest = (System.currentTimeMillis() / bucketMillis) - BUCKETS;
+        long deposits = 0L;
+        long withdrawals = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.period > oldest) {
+                deposits += bucket.deposits.sum();
+                withdrawals += bucket.withdrawals.sum();
+            }
+        }
+        return reserve + deposits * ratio - withdrawals;
+    }
+
+    /**
+     * Concurrent withdrawals may overdraw the budget by a few tokens, it is an approximation anyway.
+     */
+    public boolean tryWithdraw() {
+        if (balance() < 1.0) {
+            return false;
+        }
+        currentBucket().withdrawals.increment();
+        return true;
+    }
+}
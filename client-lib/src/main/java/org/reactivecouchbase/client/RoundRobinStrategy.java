@@ -0,0 +1,16 @@
+package org.reactivecouchbase.client;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+class RoundRobinStrategy implements LoadBalancingStrategy {
+
+    private final AtomicLong counter = new AtomicLong(0);
+
+    @Override
+    public ServiceDescriptor choose(List<ServiceDescriptor> services) {
+        int size = services.size();
+        Long index = (counter.incrementAndGet() % (size > 0 ? size : 1));
+        return services.get(index.intValue());
+    }
+}
@@ -0,0 +1,121 @@
+package org.reactivecouchbase.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.reactivecouchbase.functional.Option;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of service descriptors indexed by name and version.
+ * Role queries are computed once per snapshot and memoized, so lookups return shared immutable lists without copying.
+ * A registry rebuilds a new index on each change and publishes it, readers never see a partially updated index.
+ */
+public final class ServiceIndex {
+
+    public static final ServiceIndex EMPTY = ServiceIndex.of(ImmutableList.<ServiceDescriptor>of());
+
+    private static final int MAX_MEMOIZED_QUERIES = 1024;
+
+    private static class Bucket {
+        private final ImmutableList<ServiceDescriptor> services;
+        private final ConcurrentHashMap<ImmutableList<String>, ImmutableList<ServiceDescriptor>> byRoles = new ConcurrentHashMap<ImmutableList<String>, ImmutableList<ServiceDescriptor>>();
+
+        private Bucket(ImmutableList<ServiceDescriptor> services) {
+            this.services = services;
+        }
+
+        private ImmutableList<ServiceDescriptor> withRoles(ImmutableList<String> roles) {
+            if (roles.isEmpty()) {
+                return services;
+            }
+            ImmutableList<ServiceDescriptor> result = byRoles.get(roles);
+            if (result == null) {
+                ImmutableList.Builder<ServiceDescriptor> builder = ImmutableList.builder();
+                for (ServiceDescriptor desc : services) {
+                    // same semantic as ClientRegistry.services : every role of the instance must be part of the query
+                    if (roles.containsAll(desc.roles)) {
+                        builder.add(desc);
+                    }
+                }
+                result = builder.build();
+                if (byRoles.size() < MAX_MEMOIZED_QUERIES) {
+                    byRoles.putIfAbsent(roles, result);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class Services {
+        private final Bucket all;
+        private final ImmutableMap<String, Bucket> byVersion;
+
+        private Services(Bucket all, ImmutableMap<String, Bucket> byVersion) {
+            this.all = all;
+            this.byVersion = byVersion;
+        }
+    }
+
+    private final ImmutableList<ServiceDescriptor> all;
+    private final ImmutableMap<String, Services> byName;
+
+    private ServiceIndex(ImmutableList<ServiceDescriptor> all, ImmutableMap<String, Services> byName) {
+        this.all = all;
+        this.byName = byName;
+    }
+
+    public static ServiceIndex of(Collection<ServiceDescriptor> descriptors) {
+        Map<String, List<ServiceDescriptor>> names = new LinkedHashMap<String, List<ServiceDescriptor>>();
+        Map<String, Map<String, ImmutableList.Builder<ServiceDescriptor>>> versions = new HashMap<String, Map<String, ImmutableList.Builder<ServiceDescriptor>>>();
+        for (ServiceDescriptor desc : descriptors) {
+            names.computeIfAbsent(desc.name, k -> new ArrayList<ServiceDescriptor>()).add(desc);
+            for (String version : desc.version) {
+                versions.computeIfAbsent(desc.name, k -> new LinkedHashMap<String, ImmutableList.Builder<ServiceDescriptor>>())
+                        .computeIfAbsent(version, k -> ImmutableList.builder())
+                        .add(desc);
+            }
+        }
+        ImmutableMap.Builder<String, Services> byName = ImmutableMap.builder();
+        for (Map.Entry<String, List<ServiceDescriptor>> e : names.entrySet()) {
+            ImmutableMap.Builder<String, Bucket> byVersion = ImmutableMap.builder();
+            Map<String, ImmutableList.Builder<ServiceDescriptor>> nameVersions = versions.get(e.getKey());
+            if (nameVersions != null) {
+                for (Map.Entry<String, ImmutableList.Builder<ServiceDescriptor>> v : nameVersions.entrySet()) {
+                    byVersion.put(v.getKey(), new Bucket(v.getValue().build()));
+                }
+            }
+            byName.put(e.getKey(), new Services(new Bucket(ImmutableList.copyOf(e.getValue())), byVersion.build()));
+        }
+        return new ServiceIndex(ImmutableList.copyOf(descriptors), byName.build());
+    }
+
+    public ImmutableList<ServiceDescriptor> all() {
+        return all;
+    }
+
+    public ImmutableList<ServiceDescriptor> services(String name, Option<String> version, ImmutableList<String> roles) {
+        Services services = byName.get(name);
+        if (services == null) {
+            return ImmutableList.of();
+        }
+        Bucket bucket = services.all;
+        if (version.isDefined()) {
+            bucket = services.byVersion.get(version.get());
+            if (bucket == null) {
+                return ImmutableList.of();
+            }
+        }
+        return bucket.withRoles(roles);
+    }
+
+    public int size() {
+        return all.size();
+    }
+}
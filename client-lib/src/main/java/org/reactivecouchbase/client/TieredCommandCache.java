@@ -0,0 +1,253 @@
+package org.reactivecouchbase.client;
+
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Future;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Two levels command cache : an on-heap cache in front of a memory-mapped file holding the serialized results.
+ * The file survives restarts, its entries are deserialized and promoted to the on-heap cache only when they are read.
+ * Only successful results the codec can encode reach the file, including the ones of background refreshes, an
+ * execution that falls back is not one of them (see CommandContext.withCache).
+ * Records on disk live for the given TTL, and don't outlive the success TTL of an on-heap InMemoryCommandCache.
+ */
+public class TieredCommandCache implements CommandCache, AutoCloseable {
+
+    /**
+     * Turns the values of the cache into the bytes of the file and back. Anyone able to write the file chooses
+     * what is decoded, a codec must not instantiate arbitrary classes.
+     */
+    public interface Codec {
+
+        /**
+         * @return the bytes of value, or null if it can't be stored
+         */
+        byte[] encode(Object value) throws Exception;
+
+        Object decode(byte[] bytes) throws Exception;
+    }
+
+    private static final Class<?>[] BASIC_TYPES = new Class<?>[] {
+        String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class
+    };
+
+    private final CommandCache memory;
+    private final MappedCommandStore disk;
+    private final Duration ttl;
+    private final Codec codec;
+    private final LongAdder diskHits = new LongAdder();
+
+    private TieredCommandCache(CommandCache memory, MappedCommandStore disk, Duration ttl, Codec codec) {
+        this.memory = memory;
+        this.disk = disk;
+        this.ttl = ttl;
+        this.codec = codec;
+    }
+
+    /**
+     * Stores strings and boxed primitives with Java serialization, see serialization(types) for other values.
+     */
+    public static TieredCommandCache of(CommandCache memory, File file, long maxBytes, Duration ttl) {
+        return of(memory, file, maxBytes, ttl, serialization());
+    }
+
+    public static TieredCommandCache of(CommandCache memory, File file, long maxBytes, Duration ttl, Codec codec) {
+        if (memory instanceof InMemoryCommandCache) {
+            Duration successTtl = ((InMemoryCommandCache) memory).successTtl();
+            if (successTtl != null && successTtl.toMillis() < ttl.toMillis()) {
+                ttl = successTtl;
+            }
+        }
+        return new TieredCommandCache(memory, new MappedCommandStore(file, maxBytes), ttl, codec);
+    }
+
+    /**
+     * Java serialization reading back only strings, boxed primitives and the given types, their serializable super
+     * classes and arrays of them. The types of the fields of the values must be given too.
+     */
+    public static Codec serialization(Class<?>... types) {
+        Set<Class<?>> allowed = new HashSet<Class<?>>(Arrays.asList(BASIC_TYPES));
+        for (Class<?> type : types) {
+            for (Class<?> c = type; c != null && Serializable.class.isAssignableFrom(c); c = c.getSuperclass()) {
+                allowed.add(c);
+            }
+        }
+        allowed.add(Number.class);
+        allowed.add(Enum.class);
+        return new SerializationCodec(allowed);
+    }
+
+    private static class SerializationCodec implements Codec {
+
+        private final Set<Class<?>> allowed;
+
+        private SerializationCodec(Set<Class<?>> allowed) {
+            this.allowed = allowed;
+        }
+
+        private boolean isAllowed(Class<?> c) {
+            while (c.isArray()) {
+                c = c.getComponentType();
+            }
+            return c.isPrimitive() || allowed.contains(c);
+        }
+
+        @Override
+        public byte[] encode(Object value) throws Exception {
+            if (!(value instanceof Serializable) || !isAllowed(value.getClass())) {
+                // it could not be read back
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(byte[] bytes) throws Exception {
+            try (ObjectInputStream in = new AllowListInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            }
+        }
+
+        private class AllowListInputStream extends ObjectInputStream {
+
+            private AllowListInputStream(InputStream in) throws IOException {
+                super(in);
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                Class<?> c = super.resolveClass(desc);
+                if (!isAllowed(c)) {
+                    throw new InvalidClassException(desc.getName(), "Not allowed in the command cache");
+                }
+                return c;
+            }
+
+            @Override
+            protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+                throw new InvalidClassException("Proxies are not allowed in the command cache");
+            }
+        }
+    }
+
+    @Override
+    public Object get(String key) {
+        Object o = memory.get(key);
+        return o == null ? fromDisk(key) : o;
+    }
+
+    @Override
+    public Object get(String key, Supplier<Object> refresh) {
+        Object o = memory.get(key, () -> {
+            Object value = refresh.get();
+            persist(key, value);
+            return value;
+        });
+        return o == null ? fromDisk(key) : o;
+    }
+
+    private Object fromDisk(String key) {
+        byte[] bytes = disk.get(key);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            Future<Object> value = Future.successful(codec.decode(bytes));
+            memory.put(key, value);
+            diskHits.increment();
+            return value;
+        } catch (Exception e) {
+            // unreadable record, the class may have changed since it was written
+            disk.remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, Object value) {
+        memory.put(key, value);
+        persist(key, value);
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value) {
+        Object existing = memory.putIfAbsent(key, value);
+        if (existing != null) {
+            return existing;
+        }
+        persist(key, value);
+        return null;
+    }
+
+    private void persist(String key, Object value) {
+        if (value instanceof Future) {
+            ((Future<Object>) value).andThen(ttry -> {
+                for (Object v : ttry.asSuccess()) {
+                    toDisk(key, v);
+                }
+            });
+        } else {
+            toDisk(key, value);
+        }
+    }
+
+    private void toDisk(String key, Object value) {
+        byte[] bytes;
+        try {
+            bytes = codec.encode(value);
+        } catch (Exception e) {
+            return;
+        }
+        if (bytes != null) {
+            disk.put(key, bytes, System.currentTimeMillis() + ttl.toMillis());
+        }
+    }
+
+    @Override
+    public void cleanUp() {
+        memory.cleanUp();
+        disk.force();
+    }
+
+    /**
+     * Writes the file and unmaps it, the on-heap cache keeps working alone.
+     */
+    @Override
+    public void close() {
+        disk.close();
+    }
+
+    @Override
+    public CommandCacheStats stats() {
+        CommandCacheStats stats = memory.stats();
+        long hits = diskHits.sum();
+        return new CommandCacheStats(
+            stats.hitCount + hits,
+            Math.max(0L, stats.missCount - hits),
+            stats.evictionCount,
+            stats.loadSuccessCount,
+            stats.loadFailureCount,
+            stats.totalLoadTimeMillis,
+            stats.size
+        );
+    }
+}
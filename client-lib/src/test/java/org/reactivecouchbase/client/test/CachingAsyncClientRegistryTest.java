@@ -0,0 +1,147 @@
+package org.reactivecouchbase.client.test;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.client.AsyncClientRegistry;
+import org.reactivecouchbase.client.CachingAsyncClientRegistry;
+import org.reactivecouchbase.client.Registration;
+import org.reactivecouchbase.client.RegistryChange;
+import org.reactivecouchbase.client.ServiceDescriptor;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Await;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.concurrent.Promise;
+import org.reactivecouchbase.functional.Unit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingAsyncClientRegistryTest {
+
+    public static final Duration await = Duration.parse("10 sec");
+
+    @Test
+    public void testServesFromSnapshot() throws Exception {
+        ScheduledExecutorService ec = Executors.newScheduledThreadPool(2);
+        FakeRegistry fake = new FakeRegistry();
+        fake.add(new ServiceDescriptor("1", "users", "http://host1"));
+        CachingAsyncClientRegistry registry = CachingAsyncClientRegistry.of(fake, Duration.of("50 millis"), ec);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(1, Await.result(registry.services("users", ec), await).size());
+        }
+        Assert.assertTrue(fake.calls.get() < 10);
+
+        List<RegistryChange> changes = new CopyOnWriteArrayList<RegistryChange>();
+        registry.subscribe(changes::add);
+        fake.add(new ServiceDescriptor("2", "users", "http://host2"));
+        Thread.sleep(300);
+        Assert.assertEquals(2, Await.result(registry.services("users", ec), await).size());
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("2", changes.get(1).added.get(0).uid);
+
+        // registry down, then hanging : the last good snapshot is still served
+        fake.down = true;
+        Thread.sleep(200);
+        Assert.assertEquals(2, Await.result(registry.services("users", ec), await).size());
+        fake.down = false;
+        fake.hanging = true;
+        Thread.sleep(200);
+        Assert.assertEquals(2, Await.result(registry.services("users", ec), await).size());
+        fake.hanging = false;
+        fake.remove("1");
+        Thread.sleep(300);
+        Assert.assertEquals(1, Await.result(registry.services("users", ec), await).size());
+        Assert.assertEquals("1", changes.get(2).removed.get(0).uid);
+        registry.stop();
+        ec.shutdown();
+    }
+
+    @Test
+    public void testIgnoresLateResponses() throws Exception {
+        ScheduledExecutorService ec = Executors.newScheduledThreadPool(2);
+        FakeRegistry fake = new FakeRegistry();
+        fake.add(new ServiceDescriptor("1", "users", "http://host1"));
+        CachingAsyncClientRegistry registry = CachingAsyncClientRegistry.of(fake, Duration.of("100 millis"), 0.0, ec);
+        Assert.assertEquals(1, Await.result(registry.services("users", ec), await).size());
+        registry.stop();
+        int calls = fake.calls.get();
+        Thread.sleep(300);
+        Assert.assertEquals(calls, fake.calls.get()); // no more periodic refresh
+        List<RegistryChange> changes = new CopyOnWriteArrayList<RegistryChange>();
+        registry.subscribe(changes::add);
+        // this one times out, its answer comes after the one of the next refresh
+        fake.delayMillis = 300;
+        registry.refresh();
+        fake.delayMillis = 0;
+        fake.add(new ServiceDescriptor("2", "users", "http://host2"));
+        Thread.sleep(150);
+        Assert.assertEquals(2, Await.result(registry.refresh(), await).all().size());
+        Thread.sleep(300);
+        Assert.assertEquals(2, Await.result(registry.services("users", ec), await).size());
+        Assert.assertEquals(2, changes.size());
+        Assert.assertTrue(changes.get(1).removed.isEmpty());
+        ec.shutdown();
+    }
+
+    public static class FakeRegistry implements AsyncClientRegistry {
+
+        private final ConcurrentHashMap<String, ServiceDescriptor> services = new ConcurrentHashMap<String, ServiceDescriptor>();
+        private final AtomicInteger calls = new AtomicInteger(0);
+        private volatile boolean down = false;
+        private volatile boolean hanging = false;
+        private volatile long delayMillis = 0L;
+
+        public void add(ServiceDescriptor desc) {
+            services.put(desc.uid, desc);
+        }
+
+        public void remove(String uid) {
+            services.remove(uid);
+        }
+
+        @Override
+        public Future<List<ServiceDescriptor>> allServices(ExecutorService ec) {
+            calls.incrementAndGet();
+            if (down) {
+                return Future.failed(new RuntimeException("Registry is down"));
+            }
+            if (hanging) {
+                return new Promise<List<ServiceDescriptor>>().future();
+            }
+            List<ServiceDescriptor> snapshot = ImmutableList.copyOf(new ArrayList<ServiceDescriptor>(services.values()));
+            long delay = delayMillis;
+            if (delay > 0L) {
+                Promise<List<ServiceDescriptor>> late = new Promise<List<ServiceDescriptor>>();
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    late.trySuccess(snapshot);
+                }).start();
+                return late.future();
+            }
+            return Future.<List<ServiceDescriptor>>successful(snapshot);
+        }
+
+        @Override
+        public Future<Registration> register(ServiceDescriptor desc, ExecutorService ec) {
+            add(desc);
+            return Future.<Registration>successful(() -> remove(desc.uid));
+        }
+
+        @Override
+        public Future<Unit> unregister(String uuid, ExecutorService ec) {
+            remove(uuid);
+            return Future.successful(Unit.unit());
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.reactivecouchbase.client.test;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.client.Client;
+import org.reactivecouchbase.client.ClientRegistry;
+import org.reactivecouchbase.client.ConsistentHashClient;
+import org.reactivecouchbase.client.InMemoryClientRegistry;
+import org.reactivecouchbase.client.LoadBalancingStrategy;
+import org.reactivecouchbase.client.OutlierPolicy;
+import org.reactivecouchbase.client.Registration;
+import org.reactivecouchbase.client.RegistryChange;
+import org.reactivecouchbase.client.ServiceDescriptor;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.concurrent.Await;
+import org.reactivecouchbase.concurrent.Future;
+import org.reactivecouchbase.concurrent.Promise;
+import org.reactivecouchbase.functional.Option;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class ClientRegistryTest {
+
+    @Test
+    public void testIndexedLookups() {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        registry.register(new ServiceDescriptor("1", "users", "http://host1", Arrays.asList("read"), Option.apply("1.0")));
+        registry.register(new ServiceDescriptor("2", "users", "http://host2", Arrays.asList("read", "write"), Option.apply("1.0")));
+        registry.register(new ServiceDescriptor("3", "users", "http://host3", Option.apply("2.0")));
+        Registration registration = registry.register(new ServiceDescriptor("4", "orders", "http://host4"));
+
+        Assert.assertEquals(4, registry.allServices().size());
+        Assert.assertEquals(3, registry.services("users").size());
+        Assert.assertEquals(2, registry.services("users", "1.0").size());
+        Assert.assertEquals(0, registry.services("users", "3.0").size());
+        List<ServiceDescriptor> readers = registry.services("users", "1.0", Arrays.asList("read"));
+        Assert.assertEquals(1, readers.size());
+        Assert.assertEquals("1", readers.get(0).uid);
+        Assert.assertSame(readers, registry.services("users", "1.0", Arrays.asList("read")));
+        Assert.assertEquals(3, registry.services("users", Option.<String>none(), ImmutableList.of("read", "write")).size());
+
+        registration.unregister();
+        Assert.assertTrue(registry.services("orders").isEmpty());
+        registry.unregister("3");
+        Assert.assertEquals(2, registry.services("users").size());
+    }
+
+    @Test
+    public void testPeakEwmaAvoidsSlowInstance() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        registry.register(new ServiceDescriptor("fast", "users", "http://fast"));
+        registry.register(new ServiceDescriptor("slow", "users", "http://slow"));
+        Client client = Client.client(registry, "users", LoadBalancingStrategy.peakEwma(Duration.of("50 millis")));
+        AtomicInteger slowCalls = new AtomicInteger(0);
+        for (int i = 0; i < 100; i++) {
+            Await.result(client.call(desc -> {
+                if (desc.uid.equals("slow")) {
+                    slowCalls.incrementAndGet();
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return desc.url;
+            }), Duration.of("1 sec"));
+        }
+        Assert.assertTrue("slow calls " + slowCalls.get(), slowCalls.get() < 20);
+    }
+
+    @Test
+    public void testConsistentHashRouting() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        for (int i = 0; i < 10; i++) {
+            registry.register(new ServiceDescriptor("node-" + i, "cache", "http://node-" + i));
+        }
+        ConsistentHashClient client = Client.consistentHash(registry, "cache");
+        Map<String, String> routes = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            routes.put("key-" + i, client.service("key-" + i).get().uid);
+            Assert.assertEquals(routes.get("key-" + i), Await.result(client.call("key-" + i, desc -> desc.uid), Duration.of("1 sec")));
+        }
+        registry.unregister("node-3");
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String uid = client.service("key-" + i).get().uid;
+            Assert.assertNotEquals("node-3", uid);
+            if (!uid.equals(routes.get("key-" + i)) && !routes.get("key-" + i).equals("node-3")) {
+                moved++;
+            }
+        }
+        Assert.assertEquals(0, moved);
+        Promise<String> pending = new Promise<String>();
+        String busy = client.service("key-1").get().uid;
+        client.callM("key-1", desc -> pending.future());
+        client.callM("key-1", desc -> pending.future());
+        Assert.assertNotEquals(busy, client.service("key-1").get().uid);
+        pending.trySuccess("done");
+        Assert.assertEquals(busy, client.service("key-1").get().uid);
+        try {
+            client.withVirtualNodes(0);
+            Assert.fail("a ring needs points");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            client.withLoadFactor(0.5);
+            Assert.fail("every instance would be over its bounded load");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        registry.register(new ServiceDescriptor("1", "users", "http://host1"));
+        List<RegistryChange> changes = new ArrayList<RegistryChange>();
+        Registration subscription = registry.subscribe(changes::add).get();
+        Client client = Client.client(registry, "users");
+        Assert.assertEquals("1", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+        registry.register(new ServiceDescriptor("2", "users", "http://host2"));
+        registry.unregister("1");
+        Assert.assertEquals("2", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+        subscription.unregister();
+        registry.unregister("2");
+        Assert.assertEquals(3, changes.size());
+        Assert.assertEquals("1", changes.get(0).added.get(0).uid);
+        Assert.assertEquals("2", changes.get(1).added.get(0).uid);
+        Assert.assertEquals("1", changes.get(2).removed.get(0).uid);
+        Assert.assertTrue(changes.get(0).version < changes.get(1).version);
+        Assert.assertTrue(changes.get(1).version < changes.get(2).version);
+    }
+
+    @Test
+    public void testClientFollowsRegistryVersion() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        AtomicInteger lookups = new AtomicInteger(0);
+        ClientRegistry counting = new ClientRegistry() {
+            @Override
+            public List<ServiceDescriptor> allServices() {
+                return registry.allServices();
+            }
+
+            @Override
+            public List<ServiceDescriptor> services(String name, Option<String> version, ImmutableList<String> roles) {
+                lookups.incrementAndGet();
+                return registry.services(name, version, roles);
+            }
+
+            @Override
+            public Registration register(ServiceDescriptor desc) {
+                return registry.register(desc);
+            }
+
+            @Override
+            public void unregister(String uuid) {
+                registry.unregister(uuid);
+            }
+
+            @Override
+            public long version() {
+                return registry.version();
+            }
+        };
+        counting.register(new ServiceDescriptor("1", "users", "http://host1"));
+        Client client = Client.client(counting, "users");
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("1", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+        }
+        Assert.assertEquals(1, lookups.get());
+        counting.register(new ServiceDescriptor("2", "users", "http://host2"));
+        counting.unregister("1");
+        Assert.assertEquals("2", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+        Assert.assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        List<RegistryChange> changes = new CopyOnWriteArrayList<RegistryChange>();
+        // a listener can use the registry, it isn't called with the lock held
+        registry.subscribe(change -> {
+            registry.services("users");
+            changes.add(change);
+        });
+        ExecutorService ec = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            ec.execute(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    registry.register(new ServiceDescriptor("1", "users", "http://host1"));
+                    registry.unregister("1");
+                }
+            });
+        }
+        ec.shutdown();
+        Assert.assertTrue(ec.awaitTermination(30, TimeUnit.SECONDS));
+        // deltas come in order, each one applies to the state left by the previous one
+        Set<String> uids = new HashSet<String>();
+        long version = -1L;
+        for (RegistryChange change : changes) {
+            Assert.assertTrue(change.version > version);
+            version = change.version;
+            for (ServiceDescriptor desc : change.added) {
+                Assert.assertTrue(uids.add(desc.uid));
+            }
+            for (ServiceDescriptor desc : change.removed) {
+                Assert.assertTrue(uids.remove(desc.uid));
+            }
+        }
+        Assert.assertEquals(uids.size(), registry.allServices().size());
+    }
+
+    @Test
+    public void testRegistryWithoutSubscriptions() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        ClientRegistry plain = new ClientRegistry() {
+            @Override
+            public List<ServiceDescriptor> allServices() {
+                return registry.allServices();
+            }
+
+            @Override
+            public Registration register(ServiceDescriptor desc) {
+                return registry.register(desc);
+            }
+
+            @Override
+            public void unregister(String uuid) {
+                registry.unregister(uuid);
+            }
+        };
+        plain.register(new ServiceDescriptor("1", "users", "http://host1"));
+        Assert.assertFalse(plain.subscribe(change -> { }).isDefined());
+        Client client = Client.client(plain, "users");
+        Assert.assertEquals("1", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+        plain.register(new ServiceDescriptor("2", "users", "http://host2"));
+        plain.unregister("1");
+        // no version, looked up on each call
+        Assert.assertEquals("2", Await.result(client.call(desc -> desc.uid), Duration.of("1 sec")));
+    }
+
+    @Test
+    public void testOutlierEjection() throws Exception {
+        InMemoryClientRegistry registry = new InMemoryClientRegistry();
+        registry.register(new ServiceDescriptor("1", "users", "http://host1"));
+        registry.register(new ServiceDescriptor("2", "users", "http://host2"));
+        registry.register(new ServiceDescriptor("dead", "users", "http://dead"));
+        Client client = Client.client(registry, "users", OutlierPolicy.defaults()
+                .withConsecutiveFailures(3)
+                .withBaseEjectionTime(Duration.of("300 millis"))
+                .withRampUp(Duration.of("100 millis")));
+        AtomicInteger deadCalls = new AtomicInteger(0);
+        Function<ServiceDescriptor, Future<String>> call = desc -> {
+            if (desc.uid.equals("dead")) {
+                deadCalls.incrementAndGet();
+                return Future.failed(new RuntimeException("Connection refused"));
+            }
+            return Future.successful(desc.uid);
+        };
+        for (int i = 0; i < 100; i++) {
+            client.callM(call);
+        }
+        Assert.assertEquals(3, deadCalls.get());
+        Thread.sleep(500);
+        // back progressively over the ramp up, then ejected again
+        for (int i = 0; i < 100; i++) {
+            client.callM(call);
+            Thread.sleep(2);
+        }
+        Assert.assertEquals(6, deadCalls.get());
+        try {
+            OutlierPolicy.defaults().withBaseEjectionTime(new Duration(-1L, TimeUnit.SECONDS));
+            Assert.fail("a negative ejection time is invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            OutlierPolicy.defaults().withMaxEjectionPercentage(150.0);
+            Assert.fail("a percentage above 100 is invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
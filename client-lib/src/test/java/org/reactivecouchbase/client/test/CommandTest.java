@@ -2,21 +2,45 @@ package org.reactivecouchbase.client.test;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.reactivecouchbase.client.BatchCommand;
+import org.reactivecouchbase.client.CircuitBreaker;
 import org.reactivecouchbase.client.Command;
+import org.reactivecouchbase.client.CommandCacheStats;
 import org.reactivecouchbase.client.CommandCollapser;
 import org.reactivecouchbase.client.CommandContext;
+import org.reactivecouchbase.client.CommandEventAggregator;
+import org.reactivecouchbase.client.CommandEventStream;
+import org.reactivecouchbase.client.CommandMetrics;
+import org.reactivecouchbase.client.CommandPolicy;
+import org.reactivecouchbase.client.Deadline;
+import org.reactivecouchbase.client.HedgePolicy;
 import org.reactivecouchbase.client.InMemoryCommandCache;
+import org.reactivecouchbase.client.TieredCommandCache;
 import org.reactivecouchbase.common.Duration;
 import org.reactivecouchbase.concurrent.Await;
 import org.reactivecouchbase.concurrent.Future;
 import org.reactivecouchbase.concurrent.Promise;
 import org.reactivecouchbase.functional.Option;
-
+import org.reactivecouchbase.functional.Try;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CommandTest {
 
@@ -40,6 +64,143 @@ public class CommandTest {
         Assert.assertEquals("Hello Cache", result2);
     }
 
+    @Test
+    public void testBoundedCache() {
+        InMemoryCommandCache cache = InMemoryCommandCache.of(Duration.parse("10 min")).withMaximumSize(10);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key-" + i, Future.successful("value-" + i));
+        }
+        cache.cleanUp();
+        CommandCacheStats stats = cache.stats();
+        Assert.assertTrue(stats.size <= 10);
+        Assert.assertTrue(stats.evictionCount >= 90);
+        Assert.assertEquals(100, stats.loadSuccessCount);
+        cache.get("key-99");
+        cache.get("unknown");
+        Assert.assertEquals(2, cache.stats().requestCount());
+    }
+
+    @Test
+    public void testCacheRefreshAndFailures() throws Exception {
+        CommandContext context = CommandContext.of(5).withCache(InMemoryCommandCache.of(Duration.parse("10 min")).withRefreshAfter(Duration.parse("100 millis")));
+        AtomicInteger counter = new AtomicInteger(0);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new RefreshableCommand(counter, false)), await));
+        Thread.sleep(200);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new RefreshableCommand(counter, false)), await));
+        Thread.sleep(100);
+        Assert.assertEquals("Hello 2", Await.result(context.execute(new RefreshableCommand(counter, false)), await));
+        AtomicInteger failures = new AtomicInteger(0);
+        context.getResult(new RefreshableCommand(failures, true));
+        Thread.sleep(50);
+        context.getResult(new RefreshableCommand(failures, true));
+        Assert.assertEquals(2, failures.get());
+        AtomicInteger flaky = new AtomicInteger(0);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new FlakyRefreshableCommand(flaky)), await));
+        Thread.sleep(200);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new FlakyRefreshableCommand(flaky)), await));
+        Thread.sleep(100);
+        // the failed refresh doesn't replace the stale value with the fallback
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new FlakyRefreshableCommand(flaky)), await));
+        Assert.assertTrue(flaky.get() >= 2);
+        context.shutdown();
+    }
+
+    @Test
+    public void testFallbackIsCachedAsFailure() throws Exception {
+        CommandContext context = CommandContext.of(5).withCache(InMemoryCommandCache.of(Duration.parse("10 min")));
+        AtomicInteger counter = new AtomicInteger(0);
+        Assert.assertEquals("Goodbye", context.get(new FailingCacheCommand(counter)));
+        Assert.assertEquals("Goodbye", context.get(new FailingCacheCommand(counter)));
+        Assert.assertEquals(2, counter.get()); // no failure TTL, the fallback is not served from the cache
+        context.shutdown();
+        CommandContext negative = CommandContext.of(5).withCache(InMemoryCommandCache.of(Duration.parse("10 min")).withFailureTtl(Duration.parse("10 min")));
+        counter.set(0);
+        Assert.assertEquals("Goodbye", negative.get(new FailingCacheCommand(counter)));
+        Assert.assertEquals("Goodbye", negative.get(new FailingCacheCommand(counter)));
+        Assert.assertEquals(1, counter.get()); // the cached failure falls back
+        negative.shutdown();
+    }
+
+    @Test
+    public void testSingleFlightCache() throws Exception {
+        CommandContext context = CommandContext.of(50).withCache(InMemoryCommandCache.of(Duration.parse("10 min")));
+        AtomicInteger counter = new AtomicInteger(0);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        ExecutorService ec = Executors.newFixedThreadPool(16);
+        for (int i = 0; i < 16; i++) {
+            results.add(Future.async(() -> {
+                latch.await();
+                return Await.result(context.execute(new RefreshableCommand(counter, false)), await);
+            }, ec));
+        }
+        latch.countDown();
+        for (Future<String> result : results) {
+            Assert.assertEquals("Hello 1", Await.result(result, await));
+        }
+        Assert.assertEquals(1, counter.get());
+        ec.shutdown();
+        context.shutdown();
+    }
+
+    @Test
+    public void testTieredCacheSurvivesRestart() throws Exception {
+        File file = File.createTempFile("command-cache", ".bin");
+        file.deleteOnExit();
+        TieredCommandCache cache = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key-" + (i % 100), Future.successful("value-" + i));
+        }
+        cache.cleanUp();
+        TieredCommandCache restarted = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        Assert.assertEquals("value-999", Await.result((Future<String>) restarted.get("key-99"), await));
+        Assert.assertEquals("value-950", Await.result((Future<String>) restarted.get("key-50"), await));
+        Assert.assertNull(restarted.get("unknown"));
+        Assert.assertEquals(2, restarted.stats().hitCount);
+    }
+
+    @Test
+    public void testTieredCacheStoresOnlyTrustedValues() throws Exception {
+        File file = File.createTempFile("command-cache", ".bin");
+        file.deleteOnExit();
+        TieredCommandCache cache = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        CommandContext context = CommandContext.of(5).withCache(cache);
+        Assert.assertEquals("Goodbye", context.get(new FailingCacheCommand(new AtomicInteger(0))));
+        context.shutdown();
+        cache.put("list", Future.successful(new ArrayList<String>(Arrays.asList("a"))));
+        cache.close();
+        TieredCommandCache lists = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"), TieredCommandCache.serialization(ArrayList.class));
+        lists.put("other-list", Future.successful(new ArrayList<String>(Arrays.asList("b"))));
+        lists.close();
+        lists = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"), TieredCommandCache.serialization(ArrayList.class));
+        Assert.assertEquals(Arrays.asList("b"), Await.result((Future<List<String>>) lists.get("other-list"), await));
+        lists.close();
+        TieredCommandCache restarted = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        Assert.assertNull(restarted.get("failing-cache-key")); // a fallback is not persisted
+        Assert.assertNull(restarted.get("list")); // not written, it couldn't be read back
+        Assert.assertNull(restarted.get("other-list")); // not an allowed class
+        restarted.close();
+    }
+
+    @Test
+    public void testTieredCacheFollowsMemoryTier() throws Exception {
+        File file = File.createTempFile("command-cache", ".bin");
+        file.deleteOnExit();
+        TieredCommandCache cache = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")).withSuccessTtl(Duration.parse("100 millis")), file, 64 * 1024, Duration.parse("1 day"));
+        cache.put("short-lived", Future.successful("value"));
+        Thread.sleep(200);
+        TieredCommandCache restarted = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        Assert.assertNull(restarted.get("short-lived")); // expired with the memory tier
+        CommandContext context = CommandContext.of(5).withCache(TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")).withRefreshAfter(Duration.parse("100 millis")), file, 64 * 1024, Duration.parse("1 day")));
+        AtomicInteger counter = new AtomicInteger(0);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new RefreshableCommand(counter, false)), await));
+        Thread.sleep(200);
+        Assert.assertEquals("Hello 1", Await.result(context.execute(new RefreshableCommand(counter, false)), await));
+        context.shutdown();
+        restarted = TieredCommandCache.of(InMemoryCommandCache.of(Duration.parse("10 min")), file, 64 * 1024, Duration.parse("1 day"));
+        Assert.assertEquals("Hello 2", Await.result((Future<String>) restarted.get("refreshed-key"), await)); // refreshed value written through
+    }
+
     @Test
     public void testCollapser() {
         CommandContext context = CommandContext.of(5).withCollapser(CommandCollapser.of(Duration.parse("10 millis")));
@@ -120,6 +281,83 @@ public class CommandTest {
         context.shutdown();
     }
 
+    @Test
+    public void testCollapsedCacheEntryCompletes() throws Exception {
+        CommandContext context = CommandContext.of(12).withCollapser(CommandCollapser.of(Duration.parse("10 millis"))).withCache(InMemoryCommandCache.of(Duration.of("10 min")));
+        AtomicInteger counter = new AtomicInteger(0);
+        Future<String> result1 = context.execute(new CollapsedCacheCommand(counter, "cache-key-1"));
+        Future<String> result2 = context.execute(new CollapsedCacheCommand(counter, "cache-key-2"));
+        Assert.assertEquals("Hello", Await.result(result1, await));
+        Assert.assertEquals("Hello", Await.result(result2, await));
+        // the entry of the collapsed call completes with the call that served it
+        Assert.assertEquals("Hello", Await.result(context.execute(new CollapsedCacheCommand(counter, "cache-key-2")), Duration.parse("2 sec")));
+        Assert.assertTrue(counter.get() <= 2);
+        context.shutdown();
+    }
+
+    @Test
+    public void testBatchCollapser() {
+        // a window long enough for the whole loop, even on a busy machine
+        CommandContext context = CommandContext.of(12).withCollapser(CommandCollapser.of(Duration.parse("100 millis")));
+        AtomicInteger batches = new AtomicInteger(0);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 10; i++) {
+            results.add(context.execute(new GetDocCommand("doc-" + (i % 5), batches)));
+        }
+        Future<String> missing = context.execute(new GetDocCommand("missing", batches));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("value of doc-" + (i % 5), Await.result(results.get(i), await));
+        }
+        Assert.assertEquals("Goodbye", Await.result(missing, await));
+        Assert.assertTrue(batches.get() >= 1);
+        Assert.assertTrue(batches.get() <= 2); // one batch unless the window ticks in the middle of the loop
+        context.shutdown();
+    }
+
+    @Test
+    public void testBrokenBatchCollapser() {
+        CommandContext context = CommandContext.of(12).withCollapser(CommandCollapser.of(Duration.parse("10 millis")));
+        Future<String> nullBatch = context.execute(new BrokenDocCommand("doc-1", false));
+        Future<String> failingBatch = context.execute(new BrokenDocCommand("doc-2", true));
+        Assert.assertEquals("Goodbye", Await.result(nullBatch, await));
+        Assert.assertEquals("Goodbye", Await.result(failingBatch, await));
+        context.shutdown();
+    }
+
+    @Test
+    public void testCollapserFlushesOnBatchSize() throws Exception {
+        CommandContext context = CommandContext.of(12).withCollapser(CommandCollapser.of(Duration.parse("1 min"), 3));
+        AtomicInteger batches = new AtomicInteger(0);
+        Thread.sleep(50); // let the first tick of the collapser pass, next one is in a minute
+        Future<String> result1 = context.execute(new GetDocCommand("doc-1", batches));
+        Future<String> result2 = context.execute(new GetDocCommand("doc-2", batches));
+        Future<String> result3 = context.execute(new GetDocCommand("doc-3", batches));
+        Assert.assertEquals("value of doc-1", Await.result(result1, Duration.parse("2 sec")));
+        Assert.assertEquals("value of doc-2", Await.result(result2, Duration.parse("2 sec")));
+        Assert.assertEquals("value of doc-3", Await.result(result3, Duration.parse("2 sec")));
+        Assert.assertEquals(1, batches.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testAdaptiveCollapser() throws Exception {
+        CommandContext context = CommandContext.of(12).withCollapser(CommandCollapser.adaptive(Duration.parse("5 millis"), Duration.parse("2 sec")));
+        AtomicInteger counter = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("Hello", Await.result(context.execute(new PassingCounterCommand(counter)), await));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000); // a cold key doesn't wait for the window
+        Thread.sleep(10);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 20; i++) {
+            results.add(context.execute(new PassingCounterCommand(counter)));
+        }
+        for (Future<String> f : results) {
+            Assert.assertEquals("Hello", Await.result(f, await));
+        }
+        Assert.assertTrue(counter.get() < 10); // the burst is collapsed
+        context.shutdown();
+    }
+
     @Test
     public void testTimeout() {
         CommandContext context = CommandContext.of(5);
@@ -146,6 +384,37 @@ public class CommandTest {
         Assert.assertEquals("Hello", Await.result(result5, await));
     }
 
+    @Test
+    public void testBulkheadQueue() {
+        CommandContext context = CommandContext.of(2).withPolicy(CommandPolicy.defaults()
+                .withMaxConcurrentRequests(2)
+                .withMaxQueueSize(3)
+                .withQueueTimeout(Duration.parse("5 sec")));
+        List<Future<String>> queued = new ArrayList<Future<String>>();
+        for (int i = 0; i < 5; i++) {
+            queued.add(context.execute(new TimedCommand(Duration.parse("300 millis"))));
+        }
+        Future<String> rejected = context.execute(new TimedCommand(Duration.parse("300 millis")));
+        Future<String> otherGroup = context.execute(new PassingCommand());
+        Assert.assertEquals("Goodbye", Await.result(rejected, Duration.parse("1 sec"))); // test fast fail
+        Assert.assertEquals("Hello", Await.result(otherGroup, Duration.parse("1 sec"))); // not starved by the other group
+        for (Future<String> f : queued) {
+            Assert.assertEquals("Hello", Await.result(f, await));
+        }
+        context.shutdown();
+    }
+
+    @Test
+    public void testSharedGroupPolicy() {
+        CommandContext context = CommandContext.of(5);
+        context.updatePolicy("shared", CommandPolicy.defaults().withMaxConcurrentRequests(1));
+        Future<String> first = context.execute(new GroupedCommand("first", 10));
+        Future<String> second = context.execute(new GroupedCommand("second", 2));
+        Assert.assertEquals("Goodbye", Await.result(second, Duration.parse("1 sec"))); // the group limit wins
+        Assert.assertEquals("Hello", Await.result(first, await));
+        context.shutdown();
+    }
+
     @Test
     public void testTooMuchFailures() {
         CommandContext context = CommandContext.of(5);
@@ -165,6 +434,64 @@ public class CommandTest {
         Assert.assertEquals("Hello", result7);
     }
 
+    @Test
+    public void testPolicyDefaults() {
+        CommandContext context = CommandContext.of(5).withPolicy(CommandPolicy.defaults().withRequestVolumeThreshold(2));
+        Assert.assertEquals(5, context.policy().maxConcurrentRequests);
+        Assert.assertEquals(2, context.withPolicy(CommandPolicy.defaults().withMaxConcurrentRequests(2)).policy().maxConcurrentRequests);
+        Assert.assertEquals(Integer.MAX_VALUE, context.withPolicy(CommandPolicy.defaults().withMaxConcurrentRequests(Integer.MAX_VALUE)).policy().maxConcurrentRequests);
+        try {
+            CommandPolicy.defaults().withSleepWindow(Duration.parse("0 millis"));
+            Assert.fail("a zero sleep window is invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        context.shutdown();
+    }
+
+    @Test
+    public void testCircuitBreakerRecovery() throws Exception {
+        CommandContext context = CommandContext.of(5).withPolicy(CommandPolicy.defaults()
+                .withRequestVolumeThreshold(2)
+                .withErrorThresholdPercentage(50.0)
+                .withSleepWindow(Duration.parse("200 millis")));
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        AtomicInteger runs = new AtomicInteger(0);
+        Assert.assertEquals("Goodbye", context.get(new ToggleCommand(healthy, runs)));
+        Assert.assertEquals("Goodbye", context.get(new ToggleCommand(healthy, runs)));
+        Assert.assertEquals(2, runs.get());
+        Assert.assertEquals("Goodbye", context.get(new ToggleCommand(healthy, runs)));
+        Assert.assertEquals(2, runs.get()); // short circuited
+        healthy.set(true);
+        Thread.sleep(300);
+        Assert.assertEquals("Hello", context.get(new ToggleCommand(healthy, runs)));
+        Assert.assertEquals("Hello", context.get(new ToggleCommand(healthy, runs)));
+        Assert.assertEquals(4, runs.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testStaleSuccessDoesNotCloseCircuit() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(CommandPolicy.defaults()
+                .withRequestVolumeThreshold(2)
+                .withErrorThresholdPercentage(50.0)
+                .withSleepWindow(Duration.parse("100 millis")));
+        breaker.markFailure(Duration.parse("1 millis"));
+        breaker.markFailure(Duration.parse("1 millis"));
+        Assert.assertFalse(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        // a call started before the circuit opened
+        breaker.markSuccess(Duration.parse("1 sec"));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        breaker.markFailure(Duration.parse("1 sec"));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        // the probe
+        breaker.markSuccess(Duration.parse("1 millis"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
 
     @Test
     public void testNoFallback() {
@@ -236,6 +563,293 @@ public class CommandTest {
         Assert.assertTrue(exception);
     }
 
+    @Test
+    public void testRetryBudget() {
+        CommandContext context = CommandContext.of(5);
+        AtomicInteger counter = new AtomicInteger(0);
+        Assert.assertTrue(context.getResult(new FailingCommandWithRetryNoExpo(counter)).isFailure());
+        Assert.assertEquals(100, counter.get());
+        // the reserve of the budget has been spent by the first execution
+        Assert.assertTrue(context.getResult(new FailingCommandWithRetryNoExpo(counter)).isFailure());
+        Assert.assertEquals(102, counter.get());
+        // a new budget, with its own reserve, when the policy changes
+        context.updatePolicy(FailingCommandWithRetryNoExpo.class.getName(), CommandPolicy.defaults().withRetryBudget(0.2, 2));
+        Assert.assertTrue(context.getResult(new FailingCommandWithRetryNoExpo(counter)).isFailure());
+        Assert.assertEquals(123, counter.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testDeadlinePropagation() throws Exception {
+        CommandContext context = CommandContext.of(5);
+        AtomicInteger innerRuns = new AtomicInteger(0);
+        // executed from a command with 200 millis left, the 2 sec inner command is cut short
+        long start = System.currentTimeMillis();
+        Try<String> result = Deadline.within(Option.apply(Deadline.after(Duration.parse("200 millis"))), () -> context.getResult(new SlowCommand(innerRuns)));
+        Assert.assertTrue(result.isFailure());
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000L);
+        Assert.assertEquals(1, innerRuns.get());
+        // nothing left, the inner command doesn't even run
+        Try<String> expired = Deadline.within(Option.apply(Deadline.after(Duration.parse("0 millis"))), () -> context.getResult(new SlowCommand(innerRuns)));
+        Assert.assertTrue(expired.isFailure());
+        Assert.assertEquals(1, innerRuns.get());
+        // run() sees the deadline of its command
+        Assert.assertEquals("deadline", context.get(new DeadlineAwareCommand()));
+        context.shutdown();
+    }
+
+    @Test
+    public void testDeadlineOfCallbacks() throws Exception {
+        CommandContext context = CommandContext.of(5);
+        AtomicInteger innerRuns = new AtomicInteger(0);
+        AtomicReference<Future<String>> inner = new AtomicReference<Future<String>>();
+        long start = System.currentTimeMillis();
+        context.getResult(new NestedCommand(context, innerRuns, inner));
+        // executed from a callback completed on another thread, the inner command is still cut short
+        try {
+            Await.result(inner.get(), Duration.parse("5 sec"));
+            Assert.fail("the inner command should have been cut short");
+        } catch (AssertionError e) {
+            throw e;
+        } catch (Exception e) {
+            // expected
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000L);
+        Assert.assertEquals(1, innerRuns.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Map<String, CommandMetrics> published = new ConcurrentHashMap<String, CommandMetrics>();
+        AtomicInteger publications = new AtomicInteger(0);
+        // the publication follows the contexts derived after the publisher is set
+        CommandContext context = CommandContext.of(5)
+                .withMetricsPublisher(m -> {
+                    publications.incrementAndGet();
+                    published.put(m.name(), m);
+                }, Duration.parse("50 millis"))
+                .withCache(InMemoryCommandCache.of(Duration.parse("10 min")));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("Hello", context.get(new PassingCommand()));
+            Assert.assertEquals("Hello Cache", context.get(new PassingCacheCommand()));
+        }
+        Assert.assertEquals("Goodbye", context.get(new FailingCommand()));
+        CommandMetrics passing = context.metrics(PassingCommand.class.getName());
+        Assert.assertEquals(10, passing.successes());
+        Assert.assertEquals(10, passing.requests());
+        Assert.assertTrue(passing.percentile(99.0, TimeUnit.MILLISECONDS) >= 0);
+        CommandMetrics cached = context.metrics(PassingCacheCommand.class.getName());
+        Assert.assertEquals(1, cached.successes());
+        Assert.assertEquals(9, cached.cacheHits());
+        CommandMetrics failing = context.metrics(FailingCommand.class.getName());
+        Assert.assertEquals(1, failing.failures());
+        Assert.assertEquals(1, failing.fallbackSuccesses());
+        Thread.sleep(200);
+        Assert.assertEquals(3, published.size());
+        Assert.assertSame(passing, published.get(PassingCommand.class.getName()));
+        context.shutdown();
+        int afterShutdown = publications.get();
+        Thread.sleep(200);
+        Assert.assertEquals(afterShutdown, publications.get());
+    }
+
+    @Test
+    public void testEventStream() throws Exception {
+        CommandEventStream stream = CommandEventStream.of(16);
+        CommandEventAggregator aggregator = new CommandEventAggregator(stream, Duration.parse("10 sec"));
+        CommandContext context = CommandContext.of(5)
+                .withCache(InMemoryCommandCache.of(Duration.parse("10 min")))
+                .withEventStream(stream);
+        for (int i = 0; i < 5; i++) {
+            context.get(new PassingCommand());
+            context.get(new PassingCacheCommand());
+        }
+        Assert.assertEquals("Goodbye", context.get(new FailingCommand()));
+        Assert.assertEquals(11, aggregator.drain());
+        CommandEventAggregator.Snapshot passing = aggregator.snapshot(PassingCommand.class.getName());
+        Assert.assertEquals(5, passing.count(CommandEventStream.Outcome.SUCCESS));
+        CommandEventAggregator.Snapshot cached = aggregator.snapshot(PassingCacheCommand.class.getName());
+        Assert.assertEquals(5, cached.count(CommandEventStream.Outcome.SUCCESS));
+        Assert.assertEquals(4, cached.fromCache);
+        CommandEventAggregator.Snapshot failing = aggregator.snapshot(FailingCommand.class.getName());
+        Assert.assertEquals(1, failing.count(CommandEventStream.Outcome.FAILURE));
+        Assert.assertEquals(1, failing.fallbacks);
+        Assert.assertEquals(100.0, failing.errorPercentage(), 0.0);
+        context.shutdown();
+
+        // a collapsed caller sees its event once it has the result
+        CommandContext collapsing = CommandContext.of(5)
+                .withCollapser(CommandCollapser.of(Duration.parse("10 millis")))
+                .withEventStream(stream);
+        AtomicInteger counter = new AtomicInteger(0);
+        Future<String> first = collapsing.execute(new PassingCounterCommand(counter));
+        Future<String> second = collapsing.execute(new PassingCounterCommand(counter));
+        Assert.assertEquals("Hello", Await.result(first, await));
+        Assert.assertEquals("Hello", Await.result(second, await));
+        if (counter.get() == 1) {
+            Assert.assertEquals(2, aggregator.drain());
+            Assert.assertEquals(1, aggregator.snapshot(PassingCounterCommand.class.getName()).collapsed);
+        }
+        collapsing.shutdown();
+
+        // a lossy stream keeps the latest events when the consumer lags
+        CommandEventStream lossy = CommandEventStream.lossy(4);
+        for (int i = 0; i < 10; i++) {
+            lossy.publish("lossy", CommandEventStream.Outcome.SUCCESS, i, 0);
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        Assert.assertEquals(4, lossy.drain((name, outcome, latencyMillis, flags) -> latencies.add(latencyMillis)));
+        Assert.assertEquals(Arrays.asList(6L, 7L, 8L, 9L), latencies);
+        Assert.assertEquals(6, lossy.dropped());
+
+        // a blocking stream without consumer waits a bit, then drops too
+        CommandEventStream blocking = CommandEventStream.blocking(4, Duration.parse("10 millis"));
+        for (int i = 0; i < 10; i++) {
+            blocking.publish("blocking", CommandEventStream.Outcome.SUCCESS, i, 0);
+        }
+        Assert.assertEquals(4, blocking.drain((name, outcome, latencyMillis, flags) -> { }));
+        Assert.assertEquals(6, blocking.dropped());
+    }
+
+    @Test
+    public void testBlockingExecutor() throws Exception {
+        CommandContext context = CommandContext.of(100).withBlockingExecutor(Executors.newCachedThreadPool(r -> new Thread(r, "BLOCKING")));
+        long start = System.currentTimeMillis();
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        // way more blocking commands than threads in the pool of the context
+        for (int i = 0; i < 50; i++) {
+            results.add(context.execute(new BlockingCommand()));
+        }
+        for (Future<String> result : results) {
+            Assert.assertEquals("BLOCKING", Await.result(result, await));
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000L);
+        Assert.assertEquals("BLOCKING", context.get(new ScheduledBlockingCommand()));
+        context.shutdown();
+        try {
+            CommandContext virtual = CommandContext.of(100).withVirtualThreads();
+            Assert.assertEquals("", virtual.get(new BlockingCommand()));
+            virtual.shutdown();
+        } catch (UnsupportedOperationException e) {
+            // no virtual threads on this JVM
+        }
+    }
+
+    @Test
+    public void testBlockingPeriodicTasks() throws Exception {
+        ExecutorService blocking = Executors.newCachedThreadPool(r -> new Thread(r, "BLOCKING"));
+        CommandContext context = CommandContext.of(10).withBlockingExecutor(blocking);
+        AtomicReference<ScheduledExecutorService> executor = new AtomicReference<ScheduledExecutorService>();
+        Assert.assertEquals("BLOCKING", context.get(new ExecutorCommand(executor)));
+        ScheduledExecutorService ec = executor.get();
+        // runs take longer than the period, they must not overlap
+        AtomicInteger active = new AtomicInteger(0);
+        AtomicInteger overlaps = new AtomicInteger(0);
+        AtomicInteger runs = new AtomicInteger(0);
+        ScheduledFuture<?> rate = ec.scheduleAtFixedRate(() -> {
+            if (active.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            runs.incrementAndGet();
+            sleep(50L);
+            active.decrementAndGet();
+        }, 0L, 10L, TimeUnit.MILLISECONDS);
+        Thread.sleep(300L);
+        rate.cancel(false);
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertTrue(runs.get() > 1);
+        // the delay starts at the end of a run
+        AtomicLong lastEnd = new AtomicLong(0L);
+        AtomicLong minGap = new AtomicLong(Long.MAX_VALUE);
+        ScheduledFuture<?> delay = ec.scheduleWithFixedDelay(() -> {
+            long now = System.nanoTime();
+            if (lastEnd.get() > 0L) {
+                minGap.set(Math.min(minGap.get(), now - lastEnd.get()));
+            }
+            sleep(50L);
+            lastEnd.set(System.nanoTime());
+        }, 0L, 30L, TimeUnit.MILLISECONDS);
+        Thread.sleep(300L);
+        delay.cancel(false);
+        Assert.assertTrue(minGap.get() != Long.MAX_VALUE);
+        Assert.assertTrue(minGap.get() >= TimeUnit.MILLISECONDS.toNanos(25L));
+        // once the blocking executor is shut down, the schedule stops
+        ScheduledFuture<?> stopped = ec.scheduleAtFixedRate(() -> { }, 50L, 10L, TimeUnit.MILLISECONDS);
+        blocking.shutdown();
+        Thread.sleep(150L);
+        Assert.assertTrue(stopped.isCancelled());
+        context.shutdown();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testHedgedCommand() throws Exception {
+        CommandContext context = CommandContext.of(5);
+        AtomicInteger counter = new AtomicInteger(0);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("Hello " + (i + 1), context.get(new HedgedCommand(counter, 21)));
+        }
+        // the 21st execution hangs, the hedged one answers
+        Assert.assertEquals("Hello 22", Await.result(context.execute(new HedgedCommand(counter, 21)), Duration.parse("1 sec")));
+        Assert.assertEquals(22, counter.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testHedgeNeedsSparePermit() throws Exception {
+        CommandContext context = CommandContext.of(1);
+        AtomicInteger counter = new AtomicInteger(0);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("Hello " + (i + 1), context.get(new HedgedCommand(counter, 21)));
+        }
+        Future<String> hanging = context.execute(new HedgedCommand(counter, 21));
+        Thread.sleep(300);
+        // the hanging execution holds the only permit of the group, no hedged attempt
+        Assert.assertFalse(hanging.isCompleted());
+        Assert.assertEquals(21, counter.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testHedgeLoserKeepsItsPermit() throws Exception {
+        CommandContext context = CommandContext.of(2);
+        AtomicInteger counter = new AtomicInteger(0);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("Hello " + (i + 1), context.get(new HedgedCommand(counter, 21, 23)));
+        }
+        Assert.assertEquals("Hello 22", Await.result(context.execute(new HedgedCommand(counter, 21, 23)), Duration.parse("1 sec")));
+        // the 21st execution still runs and holds a permit, the 23rd gets the other one and no hedged attempt
+        Future<String> hanging = context.execute(new HedgedCommand(counter, 21, 23));
+        Thread.sleep(300);
+        Assert.assertFalse(hanging.isCompleted());
+        Assert.assertEquals(23, counter.get());
+        context.shutdown();
+    }
+
+    @Test
+    public void testHedgePolicyValidation() {
+        try {
+            HedgePolicy.defaults().withPercentile(120.0);
+            Assert.fail("a percentile above 100 is invalid");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HedgePolicy.defaults().withMinSamples(0);
+            Assert.fail("a hedge needs samples");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     public static class WeirdException extends RuntimeException {
         public WeirdException() {
             super();
@@ -381,6 +995,112 @@ public class CommandTest {
 
     }
 
+    public static class MultiGetCommand extends BatchCommand<String> {
+
+        private final AtomicInteger batches;
+
+        public MultiGetCommand(List<String> keys, AtomicInteger batches) {
+            super(keys);
+            this.batches = batches;
+        }
+
+        @Override
+        public Future<Map<String, String>> runAsync(ScheduledExecutorService ec) {
+            batches.incrementAndGet();
+            Map<String, String> values = new HashMap<String, String>();
+            for (String key : keys()) {
+                if (key.startsWith("doc-")) {
+                    values.put(key, "value of " + key);
+                }
+            }
+            return Future.successful(values);
+        }
+    }
+
+    public static class GetDocCommand extends Command<String> {
+
+        private final String id;
+        private final AtomicInteger batches;
+
+        public GetDocCommand(String id, AtomicInteger batches) {
+            this.id = id;
+            this.batches = batches;
+        }
+
+        @Override
+        public String collapseKey() {
+            return id;
+        }
+
+        @Override
+        public String batchGroup() {
+            return "docs";
+        }
+
+        @Override
+        public BatchCommand<String> batch(List<String> collapseKeys) {
+            return new MultiGetCommand(collapseKeys, batches);
+        }
+
+        @Override
+        public String fallback() {
+            return "Goodbye";
+        }
+    }
+
+    public static class BrokenDocCommand extends GetDocCommand {
+
+        private final boolean throwing;
+
+        public BrokenDocCommand(String id, boolean throwing) {
+            super(id, new AtomicInteger(0));
+            this.throwing = throwing;
+        }
+
+        @Override
+        public String batchGroup() {
+            return throwing ? "throwing-docs" : "null-docs";
+        }
+
+        @Override
+        public BatchCommand<String> batch(List<String> collapseKeys) {
+            if (throwing) {
+                throw new IllegalStateException("Can't build the batch");
+            }
+            return new BatchCommand<String>(collapseKeys) {
+                @Override
+                public Future<Map<String, String>> runAsync(ScheduledExecutorService ec) {
+                    return Future.successful(null);
+                }
+            };
+        }
+    }
+
+    public static class ToggleCommand extends Command<String> {
+
+        private final AtomicBoolean healthy;
+        private final AtomicInteger runs;
+
+        public ToggleCommand(AtomicBoolean healthy, AtomicInteger runs) {
+            this.healthy = healthy;
+            this.runs = runs;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            runs.incrementAndGet();
+            if (healthy.get()) {
+                return Future.successful("Hello");
+            }
+            return Future.failed(new RuntimeException("I failed"));
+        }
+
+        @Override
+        public String fallback() {
+            return "Goodbye";
+        }
+    }
+
     public static class PassingCommand extends Command<String> {
         @Override
         public Future<String> runAsync(ScheduledExecutorService ec) {
@@ -422,6 +1142,273 @@ public class CommandTest {
         }
     }
 
+    public static class CollapsedCacheCommand extends PassingCounterCommand {
+
+        private final String cacheKey;
+
+        public CollapsedCacheCommand(AtomicInteger counter, String cacheKey) {
+            super(counter);
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public String cacheKey() {
+            return cacheKey;
+        }
+
+        @Override
+        public String collapseKey() {
+            return "collapse-key";
+        }
+    }
+
+    public static class FailingCacheCommand extends Command<String> {
+
+        private final AtomicInteger counter;
+
+        public FailingCacheCommand(AtomicInteger counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            counter.incrementAndGet();
+            return Future.failed(new RuntimeException("I failed"));
+        }
+
+        @Override
+        public String fallback() {
+            return "Goodbye";
+        }
+
+        @Override
+        public String cacheKey() {
+            return "failing-cache-key";
+        }
+    }
+
+    public static class FlakyRefreshableCommand extends Command<String> {
+
+        private final AtomicInteger counter;
+
+        public FlakyRefreshableCommand(AtomicInteger counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            int count = counter.incrementAndGet();
+            if (count > 1) {
+                return Future.failed(new RuntimeException("Failure " + count));
+            }
+            return Future.successful("Hello " + count);
+        }
+
+        @Override
+        public String cacheKey() {
+            return "flaky-key";
+        }
+
+        @Override
+        public String fallback() {
+            return "Goodbye";
+        }
+    }
+
+    public static class RefreshableCommand extends Command<String> {
+
+        private final AtomicInteger counter;
+        private final boolean fail;
+
+        public RefreshableCommand(AtomicInteger counter, boolean fail) {
+            this.counter = counter;
+            this.fail = fail;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            int count = counter.incrementAndGet();
+            if (fail) {
+                return Future.failed(new RuntimeException("Failure " + count));
+            }
+            return Future.successful("Hello " + count);
+        }
+
+        @Override
+        public String cacheKey() {
+            return fail ? "failing-key" : "refreshed-key";
+        }
+    }
+
+    public static class SlowCommand extends Command<String> {
+
+        private final AtomicInteger counter;
+
+        public SlowCommand(AtomicInteger counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public String run() {
+            counter.incrementAndGet();
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Hello";
+        }
+    }
+
+    public static class NestedCommand extends Command<String> {
+
+        private final CommandContext context;
+        private final AtomicInteger innerRuns;
+        private final AtomicReference<Future<String>> inner;
+
+        public NestedCommand(CommandContext context, AtomicInteger innerRuns, AtomicReference<Future<String>> inner) {
+            this.context = context;
+            this.innerRuns = innerRuns;
+            this.inner = inner;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            Promise<String> io = new Promise<String>();
+            new Thread(() -> io.trySuccess("io")).start();
+            return io.future().flatMap(v -> {
+                Future<String> fu = context.execute(new SlowCommand(innerRuns));
+                inner.set(fu);
+                return fu;
+            }, ec);
+        }
+
+        @Override
+        public Duration timeout() {
+            return Duration.parse("200 millis");
+        }
+    }
+
+    public static class DeadlineAwareCommand extends Command<String> {
+
+        @Override
+        public String run() {
+            for (Deadline deadline : Deadline.current()) {
+                if (deadline.remaining().toMillis() <= 300L) {
+                    return "deadline";
+                }
+            }
+            return "no deadline";
+        }
+
+        @Override
+        public Duration timeout() {
+            return Duration.parse("300 millis");
+        }
+    }
+
+    public static class BlockingCommand extends Command<String> {
+        @Override
+        public String run() {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Thread.currentThread().getName();
+        }
+    }
+
+    public static class GroupedCommand extends Command<String> {
+        private final String name;
+        private final int maxConcurrentRequests;
+
+        public GroupedCommand(String name, int maxConcurrentRequests) {
+            this.name = name;
+            this.maxConcurrentRequests = maxConcurrentRequests;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String group() {
+            return "shared";
+        }
+
+        @Override
+        public CommandPolicy policy() {
+            return CommandPolicy.defaults().withMaxConcurrentRequests(maxConcurrentRequests);
+        }
+
+        @Override
+        public String run() {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "Hello";
+        }
+
+        @Override
+        public String fallback() {
+            return "Goodbye";
+        }
+    }
+
+    public static class ExecutorCommand extends Command<String> {
+
+        private final AtomicReference<ScheduledExecutorService> executor;
+
+        public ExecutorCommand(AtomicReference<ScheduledExecutorService> executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            executor.set(ec);
+            return Future.async(() -> Thread.currentThread().getName(), ec);
+        }
+    }
+
+    public static class ScheduledBlockingCommand extends Command<String> {
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            ScheduledFuture<String> thread = ec.schedule(() -> Thread.currentThread().getName(), 10, TimeUnit.MILLISECONDS);
+            return Future.async(thread::get, ec);
+        }
+    }
+
+    public static class HedgedCommand extends Command<String> {
+
+        private final AtomicInteger counter;
+        private final List<Integer> hangingRuns = new ArrayList<Integer>();
+
+        public HedgedCommand(AtomicInteger counter, int... hangingRuns) {
+            this.counter = counter;
+            for (int run : hangingRuns) {
+                this.hangingRuns.add(run);
+            }
+        }
+
+        @Override
+        public Future<String> runAsync(ScheduledExecutorService ec) {
+            int count = counter.incrementAndGet();
+            if (hangingRuns.contains(count)) {
+                return new Promise<String>().future();
+            }
+            return Future.successful("Hello " + count);
+        }
+
+        @Override
+        public HedgePolicy hedge() {
+            return HedgePolicy.defaults().withMinSamples(20);
+        }
+    }
+
     public static class PassingCacheCommand extends Command<String> {
         @Override
         public Future<String> runAsync(ScheduledExecutorService ec) {
@@ -0,0 +1,39 @@
+package org.reactivecouchbase.client.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.client.HashedWheelTimer;
+import org.reactivecouchbase.common.Duration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void testTimeoutFires() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("TEST-TIMER");
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(latch::countDown, Duration.parse("100 millis"));
+        Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+        Assert.assertTrue(timeout.isExpired());
+        Assert.assertEquals(0, timer.pendingTimeouts());
+        timer.stop();
+    }
+
+    @Test
+    public void testCancelledTimeoutsAreReleased() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("TEST-TIMER");
+        AtomicInteger fired = new AtomicInteger(0);
+        for (int i = 0; i < 10000; i++) {
+            timer.newTimeout(fired::incrementAndGet, Duration.parse("60 sec")).cancel();
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(0, timer.pendingTimeouts());
+        Assert.assertEquals(0, fired.get());
+        timer.stop();
+    }
+}
@@ -1,5 +1,6 @@
 import sbt._
 import Keys._
+import pl.project13.scala.sbt.JmhPlugin
 
 object ApplicationBuild extends Build {
 
@@ -34,6 +35,7 @@ object ApplicationBuild extends Build {
       libraryDependencies += "org.reactivecouchbase" % "common-lib" % "1.0-SNAPSHOT",
       libraryDependencies += "org.reactivecouchbase" % "concurrent-lib" % "1.0-SNAPSHOT",
       libraryDependencies += "com.google.guava" % "guava" % "19.0",
+      libraryDependencies += "com.github.ben-manes.caffeine" % "caffeine" % "2.6.2",
       libraryDependencies += "com.squareup.okhttp3" % "okhttp" % "3.1.2",
       libraryDependencies += "junit" % "junit" % "4.11" % "test",
       libraryDependencies += "com.novocode" % "junit-interface" % "0.9" % "test",
@@ -46,4 +48,14 @@ object ApplicationBuild extends Build {
       publishArtifact in (Compile, packageDoc) := false,
       publishArtifact in packageDoc := false
     )
+
+  // not aggregated by root, run with sbt "benchmarks/jmh:run"
+  lazy val benchmarks = Project("benchmarks", base = file("benchmarks"))
+    .settings(baseSettings: _*)
+    .enablePlugins(JmhPlugin)
+    .dependsOn(clientLib)
+    .settings(
+      publishLocal := {},
+      publish := {}
+    )
 }